@@ -0,0 +1,415 @@
+package renderer3d;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark class.
+ *
+ * Micro benchmarks of DepthBuffer, DepthPyramid, TileRasterizer,
+ * DeferredShader, SSAO and MeshLoader for each of the given frame sizes. Every benchmark runs
+ * warmup iterations first, then measured iterations that each repeat the
+ * operation for at least iterationTime. It reports the mean time per
+ * operation with its standard deviation over the iterations, and the
+ * bytes allocated per operation by the benchmark thread (the counter
+ * behind JMH's gc.alloc.rate.norm). The rasterizer and SSAO run on the
+ * calling thread unless --workers is given, which leaves the worker
+ * threads' allocations out. The depth buffer benchmarks run once for
+ * each of the given DepthBuffer layouts.
+ *
+ * It doesn't depend on JMH so it builds with the plain Ant build, see
+ * the bench target in build.xml.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class Benchmark {
+
+    private static final String USAGE = ""
+        + "Usage: ant bench -Dbench.args=\"[options]\"\n"
+        + "  --sizes WxH,...     frame sizes (800x600)\n"
+        + "  --mesh PATH         OBJ file or resource (/res/mariohead.obj)\n"
+        + "  --scale S           scale factor (70)\n"
+        + "  --translate X,Y,Z   translation after scaling (0,30,0)\n"
+        + "  --include REGEX     only the benchmarks whose name matches\n"
+        + "  --warmup N          warmup iterations (5)\n"
+        + "  --iterations N      measured iterations (10)\n"
+        + "  --time MS           minimum time of an iteration (200)\n"
+        + "  --workers N         raster and SSAO threads (1)\n"
+        + "  --layouts L,...     depth buffer layouts (row_major,tiled)\n";
+
+    private interface Operation {
+
+        void run() throws Exception;
+
+    }
+
+    // results are written here so the JIT can't drop the work
+    private static volatile double sink;
+
+    private final List<int[]> sizes = new ArrayList<>();
+    private String mesh = "/res/mariohead.obj";
+    private double scale = 70;
+    private double[] translation = { 0, 30, 0 };
+    private Pattern include = Pattern.compile(".*");
+    private int warmup = 5;
+    private int iterations = 10;
+    private long iterationNanos = 200000000L;
+    private int workerCount = 1;
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+    private final List<DepthBuffer.Layout> layouts = new ArrayList<>();
+
+    private final com.sun.management.ThreadMXBean threadBean
+            = (com.sun.management.ThreadMXBean)
+                    ManagementFactory.getThreadMXBean();
+
+    public void run() throws Exception {
+        try (WorkerPool workerPool = new WorkerPool(workerCount)) {
+            this.workerPool = workerPool;
+            runAll();
+        } finally {
+            this.workerPool = WorkerPool.CALLING_THREAD;
+        }
+    }
+
+    private void runAll() throws Exception {
+        if (sizes.isEmpty()) {
+            sizes.add(new int[] { 800, 600 });
+        }
+        if (layouts.isEmpty()) {
+            layouts.add(DepthBuffer.Layout.ROW_MAJOR);
+            layouts.add(DepthBuffer.Layout.TILED);
+        }
+        System.out.printf(Locale.ROOT, "%-34s %-20s %10s %9s %12s%n"
+                , "Benchmark", "Size", "ms/op", "stdev", "B/op");
+
+        MeshLoader meshLoader = new MeshLoader();
+        loadMesh(meshLoader);
+        measure("MeshLoader.load", "-", () -> loadMesh(new MeshLoader()));
+
+        for (int[] size : sizes) {
+            for (DepthBuffer.Layout layout : layouts) {
+                run(meshLoader.getMesh(), size[0], size[1], layout);
+            }
+        }
+    }
+
+    private void run(Mesh mesh, int width, int height
+            , DepthBuffer.Layout layout) throws Exception {
+
+        String size = width + "x" + height + " "
+                + layout.name().toLowerCase(Locale.ROOT);
+
+        DepthBuffer depthBuffer = new DepthBuffer(width, height
+                , DepthBuffer.Precision.DOUBLE, layout);
+
+        NormalBuffer normalBuffer = new NormalBuffer(width, height);
+        int[] colorBuffer = new int[width * height];
+        TileRasterizer rasterizer = new TileRasterizer(
+                depthBuffer, colorBuffer);
+
+        rasterizer.setWorkerPool(workerPool);
+        VertexTransform transform = new VertexTransform(mesh);
+        transform.setRotation(0.8, -0.25);
+        transform.transform(width / 2, height / 2);
+
+        measure("DepthBuffer.clear", size, depthBuffer::clear);
+
+        measure("DepthBuffer.get", size, () -> {
+            double sum = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    sum += depthBuffer.get(x, y);
+                }
+            }
+            sink = sum;
+        });
+
+        // the walk of a column-major loop over row-major data
+        measure("DepthBuffer.get column order", size, () -> {
+            double sum = 0;
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    sum += depthBuffer.get(x, y);
+                }
+            }
+            sink = sum;
+        });
+
+        measure("DepthBuffer.getUnchecked tiles", size, () -> {
+            int stride = depthBuffer.getTileRowStride();
+            int tileSize = DepthBuffer.STORAGE_TILE_SIZE;
+            double sum = 0;
+            for (int ty = 0; ty < depthBuffer.getStorageTileRows(); ty++) {
+                int rows = Math.min(tileSize, height - ty * tileSize);
+                for (int tx = 0; tx < depthBuffer.getStorageTileColumns(); tx++) {
+                    int columns = Math.min(tileSize, width - tx * tileSize);
+                    int tile = depthBuffer.tileIndex(tx, ty);
+                    for (int y = 0; y < rows; y++) {
+                        for (int x = 0; x < columns; x++) {
+                            sum += depthBuffer.getUnchecked(tile + y * stride + x);
+                        }
+                    }
+                }
+            }
+            sink = sum;
+        });
+
+        // every update succeeds since z grows with each call
+        double[] z = { 0 };
+        measure("DepthBuffer.update", size, () -> {
+            z[0]++;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    depthBuffer.update(x, y, z[0]);
+                }
+            }
+        });
+
+        measure("TileRasterizer.draw (+clear)", size, () -> {
+            depthBuffer.clear();
+            rasterizer.draw(mesh, transform);
+        });
+
+        // the mesh again, farther away and behind its first copy
+        VertexTransform behind = new VertexTransform(mesh);
+        behind.setRotation(0.8, -0.25);
+        behind.setCameraDistance(transform.getCameraDistance() * 1.5);
+        behind.transform(width / 2, height / 2);
+        depthBuffer.clear();
+        rasterizer.draw(mesh, transform);
+        DepthPyramid pyramid = new DepthPyramid(depthBuffer);
+        pyramid.build();
+        measure("DepthPyramid.build", size, pyramid::build);
+        measure("TileRasterizer.draw occluded", size, () -> {
+            rasterizer.draw(mesh, behind);
+        });
+        rasterizer.setOcclusionPyramid(pyramid);
+        measure("TileRasterizer.draw occluded hi-z", size, () -> {
+            rasterizer.draw(mesh, behind);
+        });
+        rasterizer.setOcclusionPyramid(null);
+
+        measure("TileRasterizer.draw normals", size, () -> {
+            depthBuffer.clear();
+            normalBuffer.clear();
+            rasterizer.setNormalBuffer(normalBuffer);
+            rasterizer.draw(mesh, transform);
+            rasterizer.setNormalBuffer(null);
+        });
+
+        // texturing every pixel that passes the depth test, against
+        // resolving visibility first and texturing each pixel once
+        VisibilityBuffer visibilityBuffer = new VisibilityBuffer(width, height);
+        DeferredShader shader = new DeferredShader(visibilityBuffer, colorBuffer);
+        shader.setWorkerPool(workerPool);
+        shader.setFilter(Texture.Filter.TRILINEAR);
+        rasterizer.setFilter(Texture.Filter.TRILINEAR);
+        measure("TileRasterizer.draw trilinear", size, () -> {
+            depthBuffer.clear();
+            rasterizer.draw(mesh, transform);
+        });
+        rasterizer.setVisibilityBuffer(visibilityBuffer);
+        measure("TileRasterizer.draw visibility", size, () -> {
+            depthBuffer.clear();
+            visibilityBuffer.clear();
+            rasterizer.draw(mesh, transform);
+        });
+        measure("DeferredShader.shade trilinear", size, () -> {
+            shader.shade(mesh, transform);
+        });
+        measure("Deferred trilinear (+clear)", size, () -> {
+            depthBuffer.clear();
+            visibilityBuffer.clear();
+            rasterizer.draw(mesh, transform);
+            shader.shade(mesh, transform);
+        });
+        rasterizer.setVisibilityBuffer(null);
+        rasterizer.setFilter(Texture.Filter.NEAREST);
+
+        depthBuffer.clear();
+        normalBuffer.clear();
+        rasterizer.setNormalBuffer(normalBuffer);
+        rasterizer.draw(mesh, transform);
+        rasterizer.setNormalBuffer(null);
+
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setWorkerPool(workerPool);
+        ssao.setNormalBuffer(normalBuffer);
+        measure("SSAO.process horizon", size, ssao::process);
+        for (int downsample : new int[] { 2, 4 }) {
+            ssao.setDownsample(downsample);
+            measure("SSAO.process horizon ds " + downsample, size
+                    , ssao::process);
+        }
+        ssao.setDownsample(1);
+        ssao.setHierarchical(true);
+        measure("SSAO.process horizon hi-z", size, ssao::process);
+        ssao.setHierarchical(false);
+        ssao.setKernel(SSAO.Kernel.HEMISPHERE);
+        measure("SSAO.process hemisphere", size, ssao::process);
+        measure("SSAO.getBlurred", size, ssao::getBlurred);
+    }
+
+    private void loadMesh(MeshLoader meshLoader) throws Exception {
+        meshLoader.setCacheEnabled(false);
+        meshLoader.setWorkerPool(workerPool);
+        if (new java.io.File(mesh).isFile()) {
+            meshLoader.load(new java.io.File(mesh), scale
+                    , translation[0], translation[1], translation[2]);
+        }
+        else {
+            meshLoader.load(mesh, scale
+                    , translation[0], translation[1], translation[2]);
+        }
+    }
+
+    private void measure(String name, String size, Operation operation)
+            throws Exception {
+
+        if (!include.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < warmup; i++) {
+            iterate(operation);
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadBean.getThreadAllocatedBytes(threadId);
+        long operations = 0;
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long count = iterate(operation);
+            times[i] = (System.nanoTime() - start) / 1e6 / count;
+            operations += count;
+        }
+        allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+        double mean = 0;
+        for (double time : times) {
+            mean += time;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double time : times) {
+            variance += (time - mean) * (time - mean);
+        }
+        double deviation = iterations > 1
+                ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        System.out.printf(Locale.ROOT, "%-34s %-20s %10.3f %9.3f %12d%n"
+                , name, size, mean, deviation, allocated / operations);
+    }
+
+    /**
+     * @return how many times operation ran, for at least iterationNanos
+     */
+    private long iterate(Operation operation) throws Exception {
+        long start = System.nanoTime();
+        long count = 0;
+        do {
+            operation.run();
+            count++;
+        } while (System.nanoTime() - start < iterationNanos);
+        return count;
+    }
+
+    public static Benchmark parse(String[] args) {
+        Benchmark benchmark = new Benchmark();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(
+                        "Invalid option " + option + " !");
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--sizes":
+                        for (String size : value.split(",")) {
+                            String[] parts = size.split("x");
+                            if (parts.length != 2) {
+                                throw new IllegalArgumentException(
+                                        "Invalid size " + size + " !");
+                            }
+                            benchmark.sizes.add(new int[] {
+                                Integer.parseInt(parts[0])
+                                , Integer.parseInt(parts[1]) });
+                        }
+                        break;
+                    case "--mesh":
+                        benchmark.mesh = value;
+                        break;
+                    case "--scale":
+                        benchmark.scale = Double.parseDouble(value);
+                        break;
+                    case "--translate":
+                        String[] parts = value.split(",");
+                        if (parts.length != 3) {
+                            throw new IllegalArgumentException(
+                                    "Invalid translation " + value + " !");
+                        }
+                        for (int j = 0; j < 3; j++) {
+                            benchmark.translation[j]
+                                    = Double.parseDouble(parts[j]);
+                        }
+                        break;
+                    case "--include":
+                        benchmark.include = Pattern.compile(value);
+                        break;
+                    case "--warmup":
+                        benchmark.warmup = Math.max(0
+                                , Integer.parseInt(value));
+                        break;
+                    case "--iterations":
+                        benchmark.iterations = Math.max(1
+                                , Integer.parseInt(value));
+                        break;
+                    case "--time":
+                        benchmark.iterationNanos
+                                = Math.max(1, Long.parseLong(value)) * 1000000L;
+                        break;
+                    case "--layouts":
+                        for (String layout : value.split(",")) {
+                            benchmark.layouts.add(DepthBuffer.Layout.valueOf(
+                                    layout.toUpperCase(Locale.ROOT)));
+                        }
+                        break;
+                    case "--workers":
+                        benchmark.workerCount = Math.max(1
+                                , Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Invalid option " + option + " !");
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(
+                        "Invalid value " + value + " for " + option + " !");
+            }
+        }
+        return benchmark;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0
+                && (args[0].equals("--help") || args[0].equals("-h"))) {
+
+            System.out.print(USAGE);
+            return;
+        }
+        Benchmark benchmark;
+        try {
+            benchmark = parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+            return;
+        }
+        benchmark.run();
+    }
+
+}
@@ -0,0 +1,587 @@
+package renderer3d;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import javax.imageio.ImageIO;
+
+/**
+ * BatchRenderer class.
+ *
+ * Renders frames of a mesh turning around the y axis without any window,
+ * so it runs with -Djava.awt.headless=true. Frame i is drawn at the angle
+ * startAngle + i * angleStep, and written to the output directory as
+ * frame_NNNN.png or frame_NNNN.raw. The output is either the color, the
+ * depth or the blurred ambient occlusion. PNG depth and occlusion are 8
+ * bit gray, the depth normalized to the frame with the nearest point
+ * white. Raw files have no header, just width x height little endian
+ * values row by row: 0xRRGGBB ints for color, float depths (negative
+ * infinity for the background) or float occlusion (1 = not occluded).
+ *
+ * The frames are split between worker threads, each one with its own
+ * buffers, rasterizer and SSAO. The mesh and its textures are shared.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class BatchRenderer {
+
+    public static enum Output { COLOR, DEPTH, AO }
+
+    public static enum Format { PNG, RAW }
+
+    private static final String USAGE = ""
+        + "Usage: java -Djava.awt.headless=true renderer3d.BatchRenderer"
+        + " [options]\n"
+        + "  --mesh PATH         OBJ file or resource (/res/mariohead.obj)\n"
+        + "  --scale S           scale factor (70)\n"
+        + "  --translate X,Y,Z   translation after scaling (0,30,0)\n"
+        + "  --size WxH          frame size (800x600)\n"
+        + "  --frames N          number of frames (1)\n"
+        + "  --start-angle A     y angle of the first frame in radians (0)\n"
+        + "  --angle-step A      y angle added per frame (0.025)\n"
+        + "  --tilt A            x angle (-0.25)\n"
+        + "  --output TYPE       color, depth or ao (color)\n"
+        + "  --format FORMAT     png or raw (png)\n"
+        + "  --out DIR           output directory (frames)\n"
+        + "  --workers N         frames rendered in parallel (all cores)\n"
+        + "  --filter FILTER     nearest, bilinear or trilinear (nearest)\n"
+        + "  --kernel KERNEL     horizon or hemisphere (horizon)\n"
+        + "  --downsample N      SSAO downsample factor, 1, 2 or 4 (1)\n"
+        + "  --hi-z              march a depth pyramid with the horizon kernel\n"
+        + "  --deferred          resolve visibility first, then texture each"
+        + " pixel once\n"
+        + "  --layout LAYOUT     depth buffer layout, row_major or tiled"
+        + " (row_major)\n"
+        + "  --no-cache          don't read or write the binary mesh cache\n";
+
+    private String mesh = "/res/mariohead.obj";
+    private double scale = 70;
+    private double translateX = 0;
+    private double translateY = 30;
+    private double translateZ = 0;
+    private int width = 800;
+    private int height = 600;
+    private int frames = 1;
+    private double startAngle = 0;
+    private double angleStep = 0.025;
+    private double tilt = -0.25;
+    private Output output = Output.COLOR;
+    private Format format = Format.PNG;
+    private File outputDir = new File("frames");
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    private Texture.Filter filter = Texture.Filter.NEAREST;
+    private SSAO.Kernel kernel = SSAO.Kernel.HORIZON;
+    private int downsample = 1;
+    private boolean hierarchical;
+    private boolean deferred;
+    private DepthBuffer.Layout layout = DepthBuffer.Layout.ROW_MAJOR;
+    private boolean cacheEnabled = true;
+
+    private final MeshLoader meshLoader = new MeshLoader();
+
+    public void setMesh(String mesh, double scale
+            , double translateX, double translateY, double translateZ) {
+
+        this.mesh = mesh;
+        this.scale = scale;
+        this.translateX = translateX;
+        this.translateY = translateY;
+        this.translateZ = translateZ;
+    }
+
+    public void setSize(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid size " + width + "x" + height + " !");
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setFrames(int frames, double startAngle, double angleStep
+            , double tilt) {
+
+        if (frames < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid frames " + frames + " !");
+        }
+        this.frames = frames;
+        this.startAngle = startAngle;
+        this.angleStep = angleStep;
+        this.tilt = tilt;
+    }
+
+    public void setOutput(Output output, Format format, File outputDir) {
+        this.output = output;
+        this.format = format;
+        this.outputDir = outputDir;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid worker count " + workerCount + " !");
+        }
+        this.workerCount = workerCount;
+    }
+
+    public void setFilter(Texture.Filter filter) {
+        this.filter = filter;
+    }
+
+    public void setKernel(SSAO.Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public void setDownsample(int downsample) {
+        if (downsample != 1 && downsample != 2 && downsample != 4) {
+            throw new IllegalArgumentException(
+                    "Invalid downsample factor " + downsample + " !");
+        }
+        this.downsample = downsample;
+    }
+
+    /**
+     * @see SSAO#setHierarchical(boolean)
+     */
+    public void setHierarchical(boolean hierarchical) {
+        this.hierarchical = hierarchical;
+    }
+
+    /**
+     * Draws into a VisibilityBuffer and textures the frame with a
+     * DeferredShader, the raster time includes both.
+     */
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    public void setLayout(DepthBuffer.Layout layout) {
+        this.layout = layout;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Loads the mesh, renders and writes all the frames and prints the
+     * timings to System.out.
+     */
+    public void render() throws Exception {
+        try (WorkerPool workerPool = new WorkerPool(workerCount)) {
+            render(workerPool);
+        } finally {
+            meshLoader.setWorkerPool(WorkerPool.CALLING_THREAD);
+        }
+    }
+
+    /**
+     * The mesh is parsed on workerPool, then each worker renders its
+     * frames on one of its threads.
+     */
+    private void render(WorkerPool workerPool) throws Exception {
+        long loadStart = System.nanoTime();
+        meshLoader.setWorkerPool(workerPool);
+        meshLoader.setCacheEnabled(cacheEnabled);
+        File meshFile = new File(mesh);
+        if (meshFile.isFile()) {
+            meshLoader.load(meshFile, scale
+                    , translateX, translateY, translateZ);
+        }
+        else {
+            meshLoader.load(mesh, scale, translateX, translateY, translateZ);
+        }
+        long loadTime = System.nanoTime() - loadStart;
+        System.out.printf(Locale.ROOT, "Loaded %s in %.1f ms, %d triangles"
+                + "%s%n", mesh, loadTime / 1e6
+                , meshLoader.getMesh().getTriangleCount()
+                , meshLoader.isLoadedFromCache() ? " (cached)" : "");
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException(
+                    "Could not create directory " + outputDir + " !");
+        }
+
+        int workers = Math.min(workerCount, frames);
+        List<Worker> tasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            tasks.add(new Worker(i, workers));
+        }
+
+        long renderStart = System.nanoTime();
+        try {
+            workerPool.invokeAll(tasks);
+        } catch (RuntimeException ex) {
+            // a frame that couldn't be written
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+        long renderTime = System.nanoTime() - renderStart;
+
+        long rasterTime = 0;
+        long ssaoTime = 0;
+        long writeTime = 0;
+        for (Worker task : tasks) {
+            rasterTime += task.rasterTime;
+            ssaoTime += task.ssaoTime;
+            writeTime += task.writeTime;
+        }
+        System.out.printf(Locale.ROOT, "Rendered %d frames (%s, %s) in"
+                + " %.1f ms with %d workers: %.2f frames/s%n", frames
+                , output.name().toLowerCase(), format.name().toLowerCase()
+                , renderTime / 1e6, workers, frames / (renderTime / 1e9));
+
+        System.out.printf(Locale.ROOT, "Per frame, worker time: raster %.2f ms, ssao"
+                + " %.2f ms, write %.2f ms%n", rasterTime / 1e6 / frames
+                , ssaoTime / 1e6 / frames, writeTime / 1e6 / frames);
+    }
+
+    /**
+     * Renders the frames first, first + step, first + 2 * step...
+     */
+    private class Worker implements Callable<Void> {
+
+        private final int first;
+        private final int step;
+
+        private final int[] colorBuffer;
+        private final BufferedImage colorImage;
+        private final DepthBuffer depthBuffer;
+        private final NormalBuffer normalBuffer;
+        private final TileRasterizer rasterizer;
+        private final VisibilityBuffer visibilityBuffer;
+        private final DeferredShader shader;
+        private final VertexTransform transform;
+        private SSAO ssao;
+        private BufferedImage grayImage;
+        private ByteBuffer rawBuffer;
+        // the depth buffer row by row, for the depth output
+        private double[] depth;
+
+        private long rasterTime;
+        private long ssaoTime;
+        private long writeTime;
+
+        public Worker(int first, int step) {
+            this.first = first;
+            this.step = step;
+            colorImage = new BufferedImage(
+                    width, height, BufferedImage.TYPE_INT_RGB);
+
+            colorBuffer = ((DataBufferInt) colorImage.getRaster()
+                    .getDataBuffer()).getData();
+
+            depthBuffer = new DepthBuffer(width, height
+                    , DepthBuffer.Precision.DOUBLE, layout);
+            rasterizer = new TileRasterizer(depthBuffer, colorBuffer);
+            rasterizer.setFilter(filter);
+            if (deferred) {
+                visibilityBuffer = new VisibilityBuffer(width, height);
+                rasterizer.setVisibilityBuffer(visibilityBuffer);
+                shader = new DeferredShader(visibilityBuffer, colorBuffer);
+                shader.setFilter(filter);
+            }
+            else {
+                visibilityBuffer = null;
+                shader = null;
+            }
+            transform = new VertexTransform(meshLoader.getMesh());
+            if (output == Output.AO) {
+                ssao = new SSAO(depthBuffer);
+                ssao.setKernel(kernel);
+                ssao.setDownsample(downsample);
+                ssao.setHierarchical(hierarchical);
+            }
+            if (output == Output.AO && kernel == SSAO.Kernel.HEMISPHERE) {
+                normalBuffer = new NormalBuffer(width, height);
+                rasterizer.setNormalBuffer(normalBuffer);
+                ssao.setNormalBuffer(normalBuffer);
+                if (shader != null) {
+                    shader.setNormalBuffer(normalBuffer);
+                }
+            }
+            else {
+                normalBuffer = null;
+            }
+            if (format == Format.RAW) {
+                rawBuffer = ByteBuffer.allocate(4 * width * height)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            else if (output != Output.COLOR) {
+                grayImage = new BufferedImage(
+                        width, height, BufferedImage.TYPE_BYTE_GRAY);
+            }
+            if (output == Output.DEPTH) {
+                depth = new double[width * height];
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Mesh mesh = meshLoader.getMesh();
+            for (int frame = first; frame < frames; frame += step) {
+                long start = System.nanoTime();
+                Arrays.fill(colorBuffer, 0xffffff);
+                depthBuffer.clear();
+                if (normalBuffer != null) {
+                    normalBuffer.clear();
+                }
+                if (visibilityBuffer != null) {
+                    visibilityBuffer.clear();
+                }
+                transform.setRotation(startAngle + frame * angleStep, tilt);
+                transform.transform(width / 2, height / 2);
+                rasterizer.draw(mesh, transform);
+                if (shader != null) {
+                    shader.shade(mesh, transform);
+                }
+                long rasterEnd = System.nanoTime();
+                rasterTime += rasterEnd - start;
+
+                float[] occlusion = null;
+                if (ssao != null) {
+                    ssao.process();
+                    occlusion = ssao.getBlurredOcclusion();
+                }
+                long ssaoEnd = System.nanoTime();
+                ssaoTime += ssaoEnd - rasterEnd;
+
+                write(frame, occlusion);
+                writeTime += System.nanoTime() - ssaoEnd;
+            }
+            return null;
+        }
+
+        private void write(int frame, float[] occlusion) throws IOException {
+            String extension = format == Format.PNG ? "png" : "raw";
+            File file = new File(outputDir, String.format(
+                    Locale.ROOT, "frame_%04d.%s", frame, extension));
+
+            if (format == Format.RAW) {
+                writeRaw(file, occlusion);
+                return;
+            }
+            BufferedImage image = colorImage;
+            if (output != Output.COLOR) {
+                byte[] gray = ((DataBufferByte) grayImage.getRaster()
+                        .getDataBuffer()).getData();
+
+                if (output == Output.DEPTH) {
+                    fillDepth(gray);
+                }
+                else {
+                    for (int i = 0; i < gray.length; i++) {
+                        gray[i] = (byte) (occlusion[i] * 255);
+                    }
+                }
+                image = grayImage;
+            }
+            if (!ImageIO.write(image, "png", file)) {
+                throw new IOException("Could not write " + file + " !");
+            }
+        }
+
+        /**
+         * Depth normalized between the farthest (black) and the nearest
+         * (white) points drawn. The background is black.
+         */
+        private void fillDepth(byte[] gray) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            depthBuffer.getAll(depth);
+            for (int i = 0; i < gray.length; i++) {
+                double z = depth[i];
+                if (z == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                min = Math.min(min, z);
+                max = Math.max(max, z);
+            }
+            double scale = max > min ? 255 / (max - min) : 0;
+            for (int i = 0; i < gray.length; i++) {
+                double z = depth[i];
+                if (z == Double.NEGATIVE_INFINITY) {
+                    gray[i] = 0;
+                }
+                else {
+                    gray[i] = (byte) (max > min ? (z - min) * scale : 255);
+                }
+            }
+        }
+
+        private void writeRaw(File file, float[] occlusion)
+                throws IOException {
+
+            rawBuffer.clear();
+            int count = width * height;
+            if (output == Output.COLOR) {
+                rawBuffer.asIntBuffer().put(colorBuffer, 0, count);
+            }
+            else if (output == Output.AO) {
+                rawBuffer.asFloatBuffer().put(occlusion, 0, count);
+            }
+            else {
+                depthBuffer.getAll(depth);
+                for (int i = 0; i < count; i++) {
+                    rawBuffer.putFloat(4 * i, (float) depth[i]);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath()
+                    , StandardOpenOption.CREATE, StandardOpenOption.WRITE
+                    , StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                while (rawBuffer.hasRemaining()) {
+                    channel.write(rawBuffer);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Configures a BatchRenderer from the command line options, see
+     * USAGE.
+     */
+    public static BatchRenderer parse(String[] args) {
+        BatchRenderer renderer = new BatchRenderer();
+        double[] translation = { renderer.translateX
+                , renderer.translateY, renderer.translateZ };
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--no-cache")) {
+                renderer.setCacheEnabled(false);
+                continue;
+            }
+            if (option.equals("--hi-z")) {
+                renderer.setHierarchical(true);
+                continue;
+            }
+            if (option.equals("--deferred")) {
+                renderer.setDeferred(true);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(
+                        "Invalid option " + option + " !");
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--mesh":
+                        renderer.mesh = value;
+                        break;
+                    case "--scale":
+                        renderer.scale = Double.parseDouble(value);
+                        break;
+                    case "--translate":
+                        String[] parts = value.split(",");
+                        if (parts.length != 3) {
+                            throw new IllegalArgumentException(
+                                    "Invalid translation " + value + " !");
+                        }
+                        for (int j = 0; j < 3; j++) {
+                            translation[j] = Double.parseDouble(parts[j]);
+                        }
+                        break;
+                    case "--size":
+                        String[] size = value.split("x");
+                        if (size.length != 2) {
+                            throw new IllegalArgumentException(
+                                    "Invalid size " + value + " !");
+                        }
+                        renderer.setSize(Integer.parseInt(size[0])
+                                , Integer.parseInt(size[1]));
+                        break;
+                    case "--frames":
+                        renderer.setFrames(Integer.parseInt(value)
+                                , renderer.startAngle, renderer.angleStep
+                                , renderer.tilt);
+                        break;
+                    case "--start-angle":
+                        renderer.startAngle = Double.parseDouble(value);
+                        break;
+                    case "--angle-step":
+                        renderer.angleStep = Double.parseDouble(value);
+                        break;
+                    case "--tilt":
+                        renderer.tilt = Double.parseDouble(value);
+                        break;
+                    case "--output":
+                        renderer.output = Output.valueOf(
+                                value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--format":
+                        renderer.format = Format.valueOf(
+                                value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--out":
+                        renderer.outputDir = new File(value);
+                        break;
+                    case "--workers":
+                        renderer.setWorkerCount(Integer.parseInt(value));
+                        break;
+                    case "--filter":
+                        renderer.filter = Texture.Filter.valueOf(
+                                value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--kernel":
+                        renderer.kernel = SSAO.Kernel.valueOf(
+                                value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--layout":
+                        renderer.layout = DepthBuffer.Layout.valueOf(
+                                value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--downsample":
+                        renderer.setDownsample(Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Invalid option " + option + " !");
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(
+                        "Invalid value " + value + " for " + option + " !");
+            }
+        }
+        renderer.translateX = translation[0];
+        renderer.translateY = translation[1];
+        renderer.translateZ = translation[2];
+        return renderer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0
+                && (args[0].equals("--help") || args[0].equals("-h"))) {
+
+            System.out.print(USAGE);
+            return;
+        }
+        BatchRenderer renderer;
+        try {
+            renderer = parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+            return;
+        }
+        renderer.render();
+    }
+
+}
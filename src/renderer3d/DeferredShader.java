@@ -0,0 +1,293 @@
+package renderer3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * DeferredShader class.
+ *
+ * Second pass of deferred shading. After a TileRasterizer has resolved
+ * visibility into a VisibilityBuffer, shade() textures every covered
+ * pixel exactly once: the texture coordinates are interpolated from the
+ * barycentric weights of the pixel and sampled with the level of detail
+ * TriangleRasterizer would have used for the triangle, so the colors are
+ * the same as drawing the mesh textured. Pixels without a triangle are
+ * left as they are.
+ *
+ * With a NormalBuffer set, the interpolated normals are written too, so
+ * SSAO reads the same depth and normals as after a textured draw.
+ *
+ * The texture and level of detail of every triangle are worked out
+ * once per shade(), then the rows are split into bands that run on a
+ * WorkerPool.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class DeferredShader {
+
+    private final VisibilityBuffer visibilityBuffer;
+    private final int[] colorBuffer;
+    private final int width;
+    private final int height;
+
+    private Texture.Filter filter = Texture.Filter.NEAREST;
+    private NormalBuffer normalBuffer;
+
+    private Mesh mesh;
+    private VertexTransform transform;
+    // per triangle of the mesh
+    private Texture[] triangleTextures = new Texture[0];
+    private double[] triangleLods = new double[0];
+
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+    private final List<Band> bands = new ArrayList<>();
+
+    public DeferredShader(VisibilityBuffer visibilityBuffer
+            , int[] colorBuffer) {
+
+        this.visibilityBuffer = visibilityBuffer;
+        this.colorBuffer = colorBuffer;
+        this.width = visibilityBuffer.getWidth();
+        this.height = visibilityBuffer.getHeight();
+        createBands();
+    }
+
+    public VisibilityBuffer getVisibilityBuffer() {
+        return visibilityBuffer;
+    }
+
+    public int[] getColorBuffer() {
+        return colorBuffer;
+    }
+
+    public Texture.Filter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(Texture.Filter filter) {
+        this.filter = filter;
+    }
+
+    public NormalBuffer getNormalBuffer() {
+        return normalBuffer;
+    }
+
+    /**
+     * @param normalBuffer buffer of the same size as the visibility
+     *     buffer, or null to not write normals
+     */
+    public void setNormalBuffer(NormalBuffer normalBuffer) {
+        this.normalBuffer = normalBuffer;
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Shades the bands on workerPool, which stays owned by the caller.
+     */
+    public void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+        createBands();
+    }
+
+    private void createBands() {
+        bands.clear();
+        int bandCount = workerPool.getTaskCount(height);
+        for (int i = 0; i < bandCount; i++) {
+            bands.add(new Band(height * i / bandCount
+                    , height * (i + 1) / bandCount));
+        }
+    }
+
+    /**
+     * @return number of pixels textured by the last shade()
+     */
+    public long getPixelCount() {
+        long count = 0;
+        for (Band band : bands) {
+            count += band.pixelCount;
+        }
+        return count;
+    }
+
+    /**
+     * Textures the pixels of the visibility buffer, which must have been
+     * drawn from mesh with the screen coordinates of the last call to
+     * transform.transform().
+     */
+    public void shade(Mesh mesh, VertexTransform transform) {
+        this.mesh = mesh;
+        this.transform = transform;
+        prepareTriangles();
+        workerPool.invokeAll(bands);
+    }
+
+    /**
+     * Texture and level of detail of every triangle, with the screen
+     * positions snapped like TriangleRasterizer does. Triangles it culls,
+     * back-facing or degenerate once snapped, are never in the visibility
+     * buffer, so their level of detail is left at 0.
+     */
+    private void prepareTriangles() {
+        int count = mesh.getTriangleCount();
+        if (triangleTextures.length < count) {
+            triangleTextures = new Texture[count];
+            triangleLods = new double[count];
+        }
+        double[] sx = transform.getScreenX();
+        double[] sy = transform.getScreenY();
+        float[] uvs = mesh.getUvs();
+        int[] positionIndices = mesh.getPositionIndices();
+        int[] uvIndices = mesh.getUvIndices();
+        int range = -1;
+        int rangeEnd = 0;
+        Texture texture = null;
+        for (int triangle = 0; triangle < count; triangle++) {
+            while (triangle >= rangeEnd) {
+                range++;
+                rangeEnd = mesh.getRangeEnd(range);
+                texture = mesh.getRangeMaterial(range).getTexture();
+            }
+            triangleTextures[triangle] = texture;
+            triangleLods[triangle] = 0;
+            int k = 3 * triangle;
+            int a = positionIndices[k];
+            int b = positionIndices[k + 1];
+            int c = positionIndices[k + 2];
+            double x0 = TriangleRasterizer.snap(sx[a]);
+            double y0 = TriangleRasterizer.snap(sy[a]);
+            double x1 = TriangleRasterizer.snap(sx[b]) - x0;
+            double y1 = TriangleRasterizer.snap(sy[b]) - y0;
+            double x2 = TriangleRasterizer.snap(sx[c]) - x0;
+            double y2 = TriangleRasterizer.snap(sy[c]) - y0;
+            double det = x1 * y2 - y1 * x2;
+            if (det >= 0) {
+                continue;
+            }
+            int ta = 2 * uvIndices[k];
+            int tb = 2 * uvIndices[k + 1];
+            int tc = 2 * uvIndices[k + 2];
+            double ds1 = uvs[tb] - uvs[ta];
+            double ds2 = uvs[tc] - uvs[ta];
+            double dt1 = uvs[tb + 1] - uvs[ta + 1];
+            double dt2 = uvs[tc + 1] - uvs[ta + 1];
+            double dsdx = (ds1 * y2 - ds2 * y1) / det;
+            double dsdy = (ds2 * x1 - ds1 * x2) / det;
+            double dtdx = (dt1 * y2 - dt2 * y1) / det;
+            double dtdy = (dt2 * x1 - dt1 * x2) / det;
+            triangleLods[triangle] = texture.computeLod(dsdx, dtdx, dsdy, dtdy);
+        }
+    }
+
+    /**
+     * Range of rows [y0, y1) and the setup of the last triangle shaded
+     * in it.
+     */
+    private class Band implements Callable<Void> {
+
+        private final int y0;
+        private final int y1;
+        private long pixelCount;
+
+        private int triangle;
+        private Texture texture;
+        private double lod;
+        private int level;
+        private double s0;
+        private double ds1;
+        private double ds2;
+        private double t0;
+        private double dt1;
+        private double dt2;
+        // x, y, z of the normal of corner 0, then the differences of
+        // corners 1 and 2 to it
+        private final double[] normals = new double[9];
+
+        public Band(int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        public Void call() {
+            pixelCount = 0;
+            triangle = VisibilityBuffer.NO_TRIANGLE;
+            int[] triangles = visibilityBuffer.getTriangle();
+            float[] weights1 = visibilityBuffer.getB1();
+            float[] weights2 = visibilityBuffer.getB2();
+            NormalBuffer normalBuffer = DeferredShader.this.normalBuffer;
+            Texture.Filter filter = DeferredShader.this.filter;
+            for (int index = y0 * width; index < y1 * width; index++) {
+                int id = triangles[index];
+                if (id == VisibilityBuffer.NO_TRIANGLE) {
+                    continue;
+                }
+                if (id != triangle) {
+                    setup(id, normalBuffer != null);
+                }
+                double b1 = weights1[index];
+                double b2 = weights2[index];
+                double s = s0 + ds1 * b1 + ds2 * b2;
+                double t = t0 + dt1 * b1 + dt2 * b2;
+                if (filter == Texture.Filter.TRILINEAR) {
+                    colorBuffer[index] = texture.sampleTrilinear(lod, s, t);
+                }
+                else if (filter == Texture.Filter.BILINEAR) {
+                    colorBuffer[index] = texture.sampleBilinear(level, s, t);
+                }
+                else {
+                    colorBuffer[index] = texture.sampleNearest(level, s, t);
+                }
+                if (normalBuffer != null) {
+                    normalBuffer.setUnchecked(index
+                            , normals[0] + normals[3] * b1 + normals[6] * b2
+                            , normals[1] + normals[4] * b1 + normals[7] * b2
+                            , normals[2] + normals[5] * b1 + normals[8] * b2);
+                }
+                pixelCount++;
+            }
+            return null;
+        }
+
+        private void setup(int triangle, boolean withNormals) {
+            this.triangle = triangle;
+            texture = triangleTextures[triangle];
+            lod = triangleLods[triangle];
+            level = texture.getNearestLevel(lod);
+            float[] uvs = mesh.getUvs();
+            int k = 3 * triangle;
+            int ta = 2 * mesh.getUvIndices()[k];
+            int tb = 2 * mesh.getUvIndices()[k + 1];
+            int tc = 2 * mesh.getUvIndices()[k + 2];
+            s0 = uvs[ta];
+            ds1 = uvs[tb] - s0;
+            ds2 = uvs[tc] - s0;
+            t0 = uvs[ta + 1];
+            dt1 = uvs[tb + 1] - t0;
+            dt2 = uvs[tc + 1] - t0;
+
+            if (withNormals) {
+                float[] nx = transform.getNormalX();
+                float[] ny = transform.getNormalY();
+                float[] nz = transform.getNormalZ();
+                int na = mesh.getNormalIndices()[k];
+                int nb = mesh.getNormalIndices()[k + 1];
+                int nc = mesh.getNormalIndices()[k + 2];
+                normals[0] = nx[na];
+                normals[1] = ny[na];
+                normals[2] = nz[na];
+                normals[3] = nx[nb] - normals[0];
+                normals[4] = ny[nb] - normals[1];
+                normals[5] = nz[nb] - normals[2];
+                normals[6] = nx[nc] - normals[0];
+                normals[7] = ny[nc] - normals[1];
+                normals[8] = nz[nc] - normals[2];
+            }
+        }
+
+    }
+
+}
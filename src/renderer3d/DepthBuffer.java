@@ -4,22 +4,98 @@ import java.util.Arrays;
 
 /**
  * DepthBuffer class.
- * 
+ *
+ * Depth values are stored in a single flat array, either as float or
+ * double depending on the precision chosen at construction, and either
+ * row by row (ROW_MAJOR) or in STORAGE_TILE_SIZE x STORAGE_TILE_SIZE
+ * tiles (TILED). A tile is stored row by row in one contiguous block of
+ * 512 bytes in double precision, and the tiles follow each other row by
+ * row, so reads that walk in any direction from a pixel stay within a few
+ * cache lines. Rows are padded to whole tiles.
+ *
+ * The indexed accessors take storage indices from index(x, y), which are
+ * only y * width + x in ROW_MAJOR layout. Tile-local loops can start from
+ * tileIndex() and step getTileRowStride() per row in either layout.
+ *
+ * The *Unchecked accessors skip the bounds check and are meant for inner
+ * loops that have already clipped their coordinates. updateUnchecked()
+ * doesn't keep track of the min and max values either, so several
+ * threads can update disjoint parts of the buffer. Call computeRange()
+ * before getNormalizedValue255() if the buffer was drawn that way.
+ *
+ * The buffer is divided in DIRTY_TILE_SIZE x DIRTY_TILE_SIZE tiles, and
+ * a tile is marked dirty whenever a value in it is set or successfully
+ * updated by set() or update(), or cleared. The *Unchecked writes are
+ * plain stores, their callers mark the area they drew with
+ * markDirty(x0, y0, x1, y1), like TriangleRasterizer does once per
+ * triangle. Nothing unmarks them but clearDirty(), which is called by
+ * whoever consumes the changes (SSAO in incremental mode).
+ *
  * @author Leonardo Ono (ono.leo80@gmail.com)
  */
 public class DepthBuffer {
-    
-    private final double[][] depth;
+
+    public static enum Precision { FLOAT, DOUBLE }
+
+    public static enum Layout { ROW_MAJOR, TILED }
+
+    public static final int DIRTY_TILE_SIZE = 32;
+    private static final int DIRTY_TILE_SHIFT = 5;
+
+    public static final int STORAGE_TILE_SIZE = 8;
+    private static final int STORAGE_TILE_SHIFT = 3;
+    private static final int STORAGE_TILE_MASK = STORAGE_TILE_SIZE - 1;
+
+    private final Precision precision;
+    private final Layout layout;
+    private final boolean tiled;
+    private final int storageColumns;
+    private final int storageRows;
+    private final double[] depthDouble;
+    private final float[] depthFloat;
     private final int width;
     private final int height;
 
     private double maxValue;
     private double minValue;
-    
+
+    private final int dirtyColumns;
+    private final int dirtyRows;
+    private final boolean[] dirty;
+
     public DepthBuffer(int width, int height) {
+        this(width, height, Precision.DOUBLE);
+    }
+
+    public DepthBuffer(int width, int height, Precision precision) {
+        this(width, height, precision, Layout.ROW_MAJOR);
+    }
+
+    public DepthBuffer(int width, int height, Precision precision
+            , Layout layout) {
+
         this.width = width;
         this.height = height;
-        depth = new double[height][width];
+        this.precision = precision;
+        this.layout = layout;
+        tiled = layout == Layout.TILED;
+        storageColumns = (width + STORAGE_TILE_MASK) >> STORAGE_TILE_SHIFT;
+        storageRows = (height + STORAGE_TILE_MASK) >> STORAGE_TILE_SHIFT;
+        int size = tiled ? storageColumns * storageRows
+                * STORAGE_TILE_SIZE * STORAGE_TILE_SIZE : width * height;
+
+        if (precision == Precision.FLOAT) {
+            depthFloat = new float[size];
+            depthDouble = null;
+        }
+        else {
+            depthDouble = new double[size];
+            depthFloat = null;
+        }
+        dirtyColumns = (width + DIRTY_TILE_SIZE - 1) / DIRTY_TILE_SIZE;
+        dirtyRows = (height + DIRTY_TILE_SIZE - 1) / DIRTY_TILE_SIZE;
+        dirty = new boolean[dirtyColumns * dirtyRows];
+        markAllDirty();
     }
 
     public int getWidth() {
@@ -29,55 +105,327 @@ public class DepthBuffer {
     public int getHeight() {
         return height;
     }
-    
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the backing array if precision is DOUBLE, otherwise null.
+     *     In storage order, see index().
+     */
+    public double[] getDoubleData() {
+        return depthDouble;
+    }
+
+    /**
+     * @return the backing array if precision is FLOAT, otherwise null.
+     *     In storage order, see index().
+     */
+    public float[] getFloatData() {
+        return depthFloat;
+    }
+
+    /**
+     * @return the storage index of the pixel (x, y). No bounds check.
+     */
+    public int index(int x, int y) {
+        if (tiled) {
+            return ((y >> STORAGE_TILE_SHIFT) * storageColumns
+                    + (x >> STORAGE_TILE_SHIFT)) << 2 * STORAGE_TILE_SHIFT
+                    | (y & STORAGE_TILE_MASK) << STORAGE_TILE_SHIFT
+                    | x & STORAGE_TILE_MASK;
+        }
+        return y * width + x;
+    }
+
+    /**
+     * @return number of STORAGE_TILE_SIZE wide tile columns, the last
+     *     one may be partly outside the buffer
+     */
+    public int getStorageTileColumns() {
+        return storageColumns;
+    }
+
+    /**
+     * @return number of STORAGE_TILE_SIZE high tile rows, the last one
+     *     may be partly outside the buffer
+     */
+    public int getStorageTileRows() {
+        return storageRows;
+    }
+
+    /**
+     * @return the storage index of the top left pixel of the storage
+     *     tile (tileX, tileY). The pixel (x, y) of the tile is at
+     *     tileIndex + y * getTileRowStride() + x.
+     */
+    public int tileIndex(int tileX, int tileY) {
+        if (tiled) {
+            return (tileY * storageColumns + tileX)
+                    << 2 * STORAGE_TILE_SHIFT;
+        }
+        return (tileY * width + tileX) << STORAGE_TILE_SHIFT;
+    }
+
+    /**
+     * @return storage index distance between two rows of a storage tile
+     */
+    public int getTileRowStride() {
+        return tiled ? STORAGE_TILE_SIZE : width;
+    }
+
     public double get(int x, int y) {
         if (x < 0 || x > width - 1 || y < 0 || y > height - 1) {
             return Double.NEGATIVE_INFINITY;
-        } 
-        return depth[y][x];
+        }
+        return getUnchecked(index(x, y));
+    }
+
+    public double getUnchecked(int x, int y) {
+        return getUnchecked(index(x, y));
+    }
+
+    public double getUnchecked(int index) {
+        if (depthDouble != null) {
+            return depthDouble[index];
+        }
+        return depthFloat[index];
     }
 
     public void set(int x, int y, double z) {
         if (x < 0 || x > width - 1 || y < 0 || y > height - 1) {
             return;
-        } 
-        depth[y][x] = z;
+        }
+        setUnchecked(index(x, y), z);
+        markDirty(x, y);
+    }
+
+    public void setUnchecked(int index, double z) {
+        if (depthDouble != null) {
+            depthDouble[index] = z;
+        }
+        else {
+            depthFloat[index] = (float) z;
+        }
     }
 
     public boolean update(int x, int y, double z) {
         if (x < 0 || x > width - 1 || y < 0 || y > height - 1) {
             return false;
-        } 
-        if (z > depth[y][x]) {
-            depth[y][x] = z;
-            
+        }
+        if (updateUnchecked(index(x, y), z)) {
+            markDirty(x, y);
             if (z < minValue) {
                 minValue = z;
             }
             if (z > maxValue) {
                 maxValue = z;
             }
-            
+
             return true;
         }
         else {
             return false;
         }
     }
-    
-    public void clear() {
+
+    public boolean updateUnchecked(int index, double z) {
+        if (z > getUnchecked(index)) {
+            setUnchecked(index, z);
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    public int getDirtyColumns() {
+        return dirtyColumns;
+    }
+
+    public int getDirtyRows() {
+        return dirtyRows;
+    }
+
+    /**
+     * @return the dirty flags of the tiles, row by row, dirtyColumns per
+     *     row
+     */
+    public boolean[] getDirtyTiles() {
+        return dirty;
+    }
+
+    public boolean isDirty(int tileX, int tileY) {
+        return dirty[tileY * dirtyColumns + tileX];
+    }
+
+    /**
+     * @return true if any tile is dirty
+     */
+    public boolean isDirty() {
+        for (boolean tile : dirty) {
+            if (tile) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void markDirty(int x, int y) {
+        dirty[(y >> DIRTY_TILE_SHIFT) * dirtyColumns
+                + (x >> DIRTY_TILE_SHIFT)] = true;
+    }
+
+    /**
+     * Marks the tiles overlapping the pixels (x0, y0) to (x1, y1),
+     * inclusive, as dirty.
+     */
+    public void markDirty(int x0, int y0, int x1, int y1) {
+        int tx0 = Math.max(x0, 0) >> DIRTY_TILE_SHIFT;
+        int ty0 = Math.max(y0, 0) >> DIRTY_TILE_SHIFT;
+        int tx1 = Math.min(x1, width - 1) >> DIRTY_TILE_SHIFT;
+        int ty1 = Math.min(y1, height - 1) >> DIRTY_TILE_SHIFT;
+        // several threads may mark the same tile, they all write true
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                dirty[ty * dirtyColumns + tx] = true;
+            }
+        }
+    }
+
+    public void markAllDirty() {
+        Arrays.fill(dirty, true);
+    }
+
+    public void clearDirty() {
+        Arrays.fill(dirty, false);
+    }
+
+    /**
+     * Recomputes the min and max values from the whole buffer, ignoring
+     * the cleared (negative infinity) entries.
+     */
+    public void computeRange() {
+        minValue = Double.POSITIVE_INFINITY;
+        maxValue = Double.NEGATIVE_INFINITY;
         for (int y = 0; y < height; y++) {
-            Arrays.fill(depth[y], Double.NEGATIVE_INFINITY);
+            for (int x = 0; x < width; x++) {
+                double z = getUnchecked(index(x, y));
+                if (z == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                if (z < minValue) {
+                    minValue = z;
+                }
+                if (z > maxValue) {
+                    maxValue = z;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the row y into dst starting at offset. No bounds check.
+     */
+    public void getRow(int y, double[] dst, int offset) {
+        if (tiled) {
+            for (int x = 0; x < width; x += STORAGE_TILE_SIZE) {
+                int index = index(x, y);
+                int count = Math.min(STORAGE_TILE_SIZE, width - x);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + x + i] = getUnchecked(index + i);
+                }
+            }
+            return;
+        }
+        int index = y * width;
+        if (depthDouble != null) {
+            System.arraycopy(depthDouble, index, dst, offset, width);
+        }
+        else {
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = depthFloat[index + x];
+            }
+        }
+    }
+
+    /**
+     * Copies the whole buffer, row by row, into dst. No bounds check.
+     */
+    public void getAll(double[] dst) {
+        if (tiled) {
+            for (int y = 0; y < height; y++) {
+                getRow(y, dst, y * width);
+            }
+            return;
+        }
+        if (depthDouble != null) {
+            System.arraycopy(depthDouble, 0, dst, 0, depthDouble.length);
+        }
+        else {
+            for (int i = 0; i < depthFloat.length; i++) {
+                dst[i] = depthFloat[i];
+            }
+        }
+    }
+
+    public void clear() {
+        if (depthDouble != null) {
+            Arrays.fill(depthDouble, Double.NEGATIVE_INFINITY);
+        }
+        else {
+            Arrays.fill(depthFloat, Float.NEGATIVE_INFINITY);
         }
         minValue = Double.POSITIVE_INFINITY;
         maxValue = Double.NEGATIVE_INFINITY;
+        markAllDirty();
+    }
+
+    /**
+     * Clears the pixels (x0, y0) to (x1, y1), inclusive, so only that part
+     * can be drawn again. The min and max values are left as they are.
+     */
+    public void clear(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width - 1);
+        y1 = Math.min(y1, height - 1);
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        for (int y = y0; y <= y1; y++) {
+            // one span per storage tile, contiguous in both layouts
+            int x = x0;
+            while (x <= x1) {
+                int end = tiled ? Math.min(x1, x | STORAGE_TILE_MASK) : x1;
+                fill(index(x, y), end - x + 1);
+                x = end + 1;
+            }
+        }
+        markDirty(x0, y0, x1, y1);
     }
-    
+
+    private void fill(int index, int count) {
+        if (depthDouble != null) {
+            Arrays.fill(depthDouble, index, index + count
+                    , Double.NEGATIVE_INFINITY);
+        }
+        else {
+            Arrays.fill(depthFloat, index, index + count
+                    , Float.NEGATIVE_INFINITY);
+        }
+    }
+
     public int getNormalizedValue255(int x, int y) {
         double dif = maxValue - minValue;
         double z = get(x, y);
         double p = (z - minValue) / dif;
         return (int) (255 * p);
     }
-    
+
 }
@@ -0,0 +1,231 @@
+package renderer3d;
+
+/**
+ * DepthPyramid class.
+ *
+ * Hierarchical-Z mip chain of a DepthBuffer. Level 0 is the buffer
+ * itself, and every texel of level L + 1 covers 2x2 texels of level L,
+ * down to a single texel. Each level keeps both the nearest (max) and the
+ * farthest (min) depth of the pixels it covers: the nearest depth is what
+ * a horizon search needs (SSAO samples coarser levels for distant steps),
+ * the farthest depth is what occlusion culling needs, since something
+ * behind the farthest depth of a region is hidden by all of it.
+ *
+ * build() must be called after the depth buffer changes. A pyramid built
+ * earlier in the same frame is still safe for culling, because drawing
+ * only brings depth values closer, but not one from before a clear().
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class DepthPyramid {
+
+    private final DepthBuffer depthBuffer;
+    private final int levelCount;
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+    // index 0 is unused, level 0 is read from depthBuffer
+    private final double[][] nearest;
+    private final double[][] farthest;
+
+    public DepthPyramid(DepthBuffer depthBuffer) {
+        this.depthBuffer = depthBuffer;
+        int count = 1;
+        int w = depthBuffer.getWidth();
+        int h = depthBuffer.getHeight();
+        while (w > 1 || h > 1) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            count++;
+        }
+        levelCount = count;
+        levelWidth = new int[count];
+        levelHeight = new int[count];
+        nearest = new double[count][];
+        farthest = new double[count][];
+        levelWidth[0] = depthBuffer.getWidth();
+        levelHeight[0] = depthBuffer.getHeight();
+        for (int level = 1; level < count; level++) {
+            levelWidth[level] = (levelWidth[level - 1] + 1) / 2;
+            levelHeight[level] = (levelHeight[level - 1] + 1) / 2;
+            nearest[level] = new double[levelWidth[level] * levelHeight[level]];
+            farthest[level] = new double[levelWidth[level] * levelHeight[level]];
+        }
+    }
+
+    public DepthBuffer getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public int getWidth(int level) {
+        return levelWidth[level];
+    }
+
+    public int getHeight(int level) {
+        return levelHeight[level];
+    }
+
+    /**
+     * Rebuilds all the levels from the depth buffer.
+     */
+    public void build() {
+        if (levelCount > 1) {
+            buildFirstLevel();
+        }
+        for (int level = 2; level < levelCount; level++) {
+            buildLevel(level);
+        }
+    }
+
+    /**
+     * Reduces the depth buffer one storage tile at a time, so the reads
+     * stay within the tile in either layout.
+     */
+    private void buildFirstLevel() {
+        int sw = levelWidth[0];
+        int sh = levelHeight[0];
+        int w = levelWidth[1];
+        double[] near = nearest[1];
+        double[] far = farthest[1];
+        int size = DepthBuffer.STORAGE_TILE_SIZE;
+        int stride = depthBuffer.getTileRowStride();
+        for (int ty = 0; ty < depthBuffer.getStorageTileRows(); ty++) {
+            for (int tx = 0; tx < depthBuffer.getStorageTileColumns(); tx++) {
+                int tile = depthBuffer.tileIndex(tx, ty);
+                int x0 = tx * size;
+                int y0 = ty * size;
+                int rows = Math.min(size, sh - y0);
+                int columns = Math.min(size, sw - x0);
+                for (int y = 0; y < rows; y += 2) {
+                    int row0 = tile + y * stride;
+                    int row1 = tile + Math.min(y + 1, rows - 1) * stride;
+                    int target = (y0 + y) / 2 * w + x0 / 2;
+                    for (int x = 0; x < columns; x += 2) {
+                        int x1 = Math.min(x + 1, columns - 1);
+                        double a = depthBuffer.getUnchecked(row0 + x);
+                        double b = depthBuffer.getUnchecked(row0 + x1);
+                        double c = depthBuffer.getUnchecked(row1 + x);
+                        double d = depthBuffer.getUnchecked(row1 + x1);
+                        double n0 = a > b ? a : b;
+                        double n1 = c > d ? c : d;
+                        double f0 = a < b ? a : b;
+                        double f1 = c < d ? c : d;
+                        near[target + x / 2] = n0 > n1 ? n0 : n1;
+                        far[target + x / 2] = f0 < f1 ? f0 : f1;
+                    }
+                }
+            }
+        }
+    }
+
+    private void buildLevel(int level) {
+        reduce(nearest[level - 1], farthest[level - 1], levelWidth[level - 1]
+                , levelHeight[level - 1], nearest[level], farthest[level]
+                , levelWidth[level], levelHeight[level]);
+    }
+
+    private static void reduce(double[] sourceNear, double[] sourceFar
+            , int sw, int sh, double[] near, double[] far, int w, int h) {
+
+        for (int y = 0; y < h; y++) {
+            int row0 = 2 * y * sw;
+            int row1 = Math.min(2 * y + 1, sh - 1) * sw;
+            for (int x = 0; x < w; x++) {
+                int sx0 = 2 * x;
+                int sx1 = Math.min(sx0 + 1, sw - 1);
+                // plain comparisons, depth values are never NaN
+                double a = sourceNear[row0 + sx0];
+                double b = sourceNear[row0 + sx1];
+                double c = sourceNear[row1 + sx0];
+                double d = sourceNear[row1 + sx1];
+                a = a > b ? a : b;
+                c = c > d ? c : d;
+                near[y * w + x] = a > c ? a : c;
+                a = sourceFar[row0 + sx0];
+                b = sourceFar[row0 + sx1];
+                c = sourceFar[row1 + sx0];
+                d = sourceFar[row1 + sx1];
+                a = a < b ? a : b;
+                c = c < d ? c : d;
+                far[y * w + x] = a < c ? a : c;
+            }
+        }
+    }
+
+    /**
+     * @return the nearest depths of level (from 1), row by row,
+     *     getWidth(level) per row
+     */
+    public double[] getNearestData(int level) {
+        return nearest[level];
+    }
+
+    /**
+     * @return the farthest depths of level (from 1), row by row,
+     *     getWidth(level) per row
+     */
+    public double[] getFarthestData(int level) {
+        return farthest[level];
+    }
+
+    /**
+     * @return the nearest depth of the pixels covered by the texel (x, y)
+     *     of level. No bounds check.
+     */
+    public double getNearestUnchecked(int level, int x, int y) {
+        if (level == 0) {
+            return depthBuffer.getUnchecked(x, y);
+        }
+        return nearest[level][y * levelWidth[level] + x];
+    }
+
+    /**
+     * @return the farthest depth of the pixels covered by the texel (x, y)
+     *     of level. No bounds check.
+     */
+    public double getFarthestUnchecked(int level, int x, int y) {
+        if (level == 0) {
+            return depthBuffer.getUnchecked(x, y);
+        }
+        return farthest[level][y * levelWidth[level] + x];
+    }
+
+    /**
+     * Tests the screen rectangle (minX, minY) to (maxX, maxY) against the
+     * farthest depth of the level where it covers at most 2x2 texels.
+     *
+     * @param depth the nearest depth of whatever covers the rectangle
+     * @return true if depth is behind everything in the rectangle, so
+     *     nothing of it would pass the depth test. Rectangles partly off
+     *     screen are only tested on their visible part, and those fully
+     *     off screen are reported as occluded.
+     */
+    public boolean isOccluded(double minX, double minY, double maxX
+            , double maxY, double depth) {
+
+        int x0 = Math.max((int) Math.floor(minX), 0);
+        int y0 = Math.max((int) Math.floor(minY), 0);
+        int x1 = Math.min((int) Math.floor(maxX), levelWidth[0] - 1);
+        int y1 = Math.min((int) Math.floor(maxY), levelHeight[0] - 1);
+        if (x0 > x1 || y0 > y1) {
+            return true;
+        }
+        int level = 0;
+        while ((x1 >> level) - (x0 >> level) > 1
+                || (y1 >> level) - (y0 >> level) > 1) {
+            level++;
+        }
+        for (int y = y0 >> level; y <= y1 >> level; y++) {
+            for (int x = x0 >> level; x <= x1 >> level; x++) {
+                if (depth >= getFarthestUnchecked(level, x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,51 @@
+package renderer3d;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventCounter class.
+ *
+ * Running total of something counted once per frame, like the pixels
+ * that passed the depth test. getLast() is the amount of the last add(),
+ * that is the value of the last frame. Threads can add concurrently
+ * without locking.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class EventCounter implements EventCounterMBean {
+
+    private final String name;
+    private final LongAdder value = new LongAdder();
+    private volatile long last;
+
+    public EventCounter(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+        last = amount;
+    }
+
+    @Override
+    public long getValue() {
+        return value.sum();
+    }
+
+    @Override
+    public long getLast() {
+        return last;
+    }
+
+    @Override
+    public void reset() {
+        value.reset();
+        last = 0;
+    }
+
+}
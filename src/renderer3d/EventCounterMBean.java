@@ -0,0 +1,20 @@
+package renderer3d;
+
+/**
+ * EventCounterMBean interface.
+ *
+ * JMX view of an EventCounter.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public interface EventCounterMBean {
+
+    String getName();
+
+    long getValue();
+
+    long getLast();
+
+    void reset();
+
+}
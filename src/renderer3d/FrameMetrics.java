@@ -0,0 +1,182 @@
+package renderer3d;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * FrameMetrics class.
+ *
+ * Named LatencyHistograms and EventCounters of a renderer, in the order
+ * they were first asked for. After registerMBeans() they are visible in
+ * JConsole or VisualVM under domain:type=Histogram and
+ * domain:type=Counter, including the ones created later. paintOverlay()
+ * draws them as a table on the frame.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class FrameMetrics {
+
+    private static final Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
+
+    private final String domain;
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private final Map<String, EventCounter> counters = new LinkedHashMap<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private MBeanServer server;
+
+    public FrameMetrics(String domain) {
+        this.domain = domain;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public synchronized LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(name);
+            histograms.put(name, histogram);
+            register("Histogram", name, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized EventCounter getCounter(String name) {
+        EventCounter counter = counters.get(name);
+        if (counter == null) {
+            counter = new EventCounter(name);
+            counters.put(name, counter);
+            register("Counter", name, counter);
+        }
+        return counter;
+    }
+
+    public synchronized List<LatencyHistogram> getHistograms() {
+        return new ArrayList<>(histograms.values());
+    }
+
+    public synchronized List<EventCounter> getCounters() {
+        return new ArrayList<>(counters.values());
+    }
+
+    /**
+     * Registers the histograms and counters with the platform MBean
+     * server.
+     *
+     * @throws IllegalArgumentException if the names are already taken,
+     *     for example by another FrameMetrics of the same domain
+     */
+    public synchronized void registerMBeans() {
+        if (server != null) {
+            return;
+        }
+        server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (LatencyHistogram histogram : histograms.values()) {
+                register("Histogram", histogram.getName(), histogram);
+            }
+            for (EventCounter counter : counters.values()) {
+                register("Counter", counter.getName(), counter);
+            }
+        } catch (IllegalArgumentException ex) {
+            unregisterMBeans();
+            throw ex;
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        if (server == null) {
+            return;
+        }
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                // already gone
+            }
+        }
+        registered.clear();
+        server = null;
+    }
+
+    private void register(String type, String name, Object mbean) {
+        if (server == null) {
+            return;
+        }
+        String objectName = domain + ":type=" + type
+                + ",name=" + ObjectName.quote(name);
+        try {
+            ObjectName mbeanName = new ObjectName(objectName);
+            server.registerMBean(mbean, mbeanName);
+            registered.add(mbeanName);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(
+                    "Invalid MBean " + objectName + " !", ex);
+        }
+    }
+
+    /**
+     * Clears all the histograms and counters.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : getHistograms()) {
+            histogram.reset();
+        }
+        for (EventCounter counter : getCounters()) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Draws the count, mean, p50, p99 and max of every histogram in
+     * milliseconds, then the last value of every counter, with the top
+     * left corner at (x, y).
+     */
+    public void paintOverlay(Graphics2D g, int x, int y) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-10s %7s %7s %7s %7s %7s"
+                , "ms", "count", "mean", "p50", "p99", "max"));
+
+        for (LatencyHistogram histogram : getHistograms()) {
+            lines.add(String.format(Locale.ROOT
+                    , "%-10s %7d %7.2f %7.2f %7.2f %7.2f"
+                    , histogram.getName(), histogram.getCount()
+                    , histogram.getMeanMillis(), histogram.getP50Millis()
+                    , histogram.getP99Millis(), histogram.getMaxMillis()));
+        }
+        for (EventCounter counter : getCounters()) {
+            lines.add(String.format(Locale.ROOT, "%-18s %12d"
+                    , counter.getName(), counter.getLast()));
+        }
+
+        g.setFont(OVERLAY_FONT);
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        g.setColor(OVERLAY_BACKGROUND);
+        g.fillRect(x, y, width + 8, lines.size() * lineHeight + 8);
+        g.setColor(Color.WHITE);
+        int baseline = y + 4 + fm.getAscent();
+        for (String line : lines) {
+            g.drawString(line, x + 4, baseline);
+            baseline += lineHeight;
+        }
+    }
+
+}
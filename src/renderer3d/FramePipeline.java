@@ -0,0 +1,236 @@
+package renderer3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FramePipeline class.
+ *
+ * Runs each stage of a frame (for example rasterization, SSAO and
+ * presentation) on its own thread, so frame N + 1 can be rasterized while
+ * frame N is post processed and frame N - 1 presented. Every frame in
+ * flight needs its own set of buffers. The sets given at construction go
+ * through the stages in order and then back to the first one, so 2 sets
+ * give double buffering and 3 sets let all the stages of a 3 stage
+ * pipeline work at the same time. A stage waits when the next one hasn't
+ * given a set back, so the frame rate is set by the slowest stage rather
+ * than by the sum of them.
+ *
+ * The first stage starts a frame at most every period. The deadlines
+ * advance by exactly one period per frame, so the time a frame takes
+ * doesn't add to the wait, and after a slow frame the next ones start
+ * right away until the schedule is caught up. A frame started more than
+ * MAX_LATE_PERIODS late restarts the deadlines from now instead.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class FramePipeline<T> {
+
+    public interface Stage<T> {
+
+        /**
+         * @param frame buffer set of the frame, only used by this stage
+         *     until it returns
+         * @param index number of the frame, from 0
+         */
+        void process(T frame, long index) throws Exception;
+
+    }
+
+    private static class Slot<T> {
+
+        private final T frame;
+        private long index;
+
+        public Slot(T frame) {
+            this.frame = frame;
+        }
+
+    }
+
+    private static final int MAX_LATE_PERIODS = 4;
+
+    private final List<Stage<T>> stages;
+    // queue i feeds stage i, the last stage gives the sets back to queue 0
+    private final List<BlockingQueue<Slot<T>>> queues = new ArrayList<>();
+    private final List<Slot<T>> slots = new ArrayList<>();
+    private final long periodNanos;
+    private final String name;
+
+    private final AtomicLongArray stageNanos;
+    private final AtomicLongArray stageFrames;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+    private long nextIndex;
+    private long deadline;
+    private long startTime;
+
+    /**
+     * @param frames the buffer sets, at least one
+     * @param stages run in this order on every frame
+     * @param periodNanos minimum time between the start of two frames,
+     *     0 to start them as soon as a buffer set is free
+     */
+    public FramePipeline(String name, List<T> frames, List<Stage<T>> stages
+            , long periodNanos) {
+
+        if (frames.isEmpty() || stages.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Invalid pipeline without frames or stages !");
+        }
+        if (periodNanos < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid period " + periodNanos + " !");
+        }
+        this.name = name;
+        this.stages = new ArrayList<>(stages);
+        this.periodNanos = periodNanos;
+        for (int i = 0; i < stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<Slot<T>>(frames.size()));
+        }
+        for (T frame : frames) {
+            slots.add(new Slot<>(frame));
+        }
+        queues.get(0).addAll(slots);
+        stageNanos = new AtomicLongArray(stages.size());
+        stageFrames = new AtomicLongArray(stages.size());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startTime = System.nanoTime();
+        for (int i = 0; i < stages.size(); i++) {
+            final int stage = i;
+            Thread thread = new Thread(() -> runStage(stage)
+                    , name + " stage " + i);
+
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops all the stages and waits for them. The frames in flight are
+     * dropped and all the buffer sets go back to the first stage, so a
+     * later start() runs with every set again.
+     */
+    public void stop() {
+        List<Thread> stopped;
+        synchronized (this) {
+            running = false;
+            stopped = new ArrayList<>(threads);
+            threads.clear();
+        }
+        for (Thread thread : stopped) {
+            thread.interrupt();
+        }
+        for (Thread thread : stopped) {
+            if (thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (this) {
+            // the sets held by a stage when it stopped are in no queue
+            if (!running && !stopped.isEmpty()) {
+                for (BlockingQueue<Slot<T>> queue : queues) {
+                    queue.clear();
+                }
+                queues.get(0).addAll(slots);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * @return how many frames went through all the stages
+     */
+    public long getFrameCount() {
+        return stageFrames.get(stages.size() - 1);
+    }
+
+    /**
+     * @return mean time stage took per frame, in milliseconds
+     */
+    public double getStageTime(int stage) {
+        long frames = stageFrames.get(stage);
+        return frames == 0 ? 0 : stageNanos.get(stage) / 1e6 / frames;
+    }
+
+    /**
+     * @return frames through all the stages per second since start()
+     */
+    public double getFrameRate() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? getFrameCount() / seconds : 0;
+    }
+
+    private void runStage(int stage) {
+        BlockingQueue<Slot<T>> input = queues.get(stage);
+        BlockingQueue<Slot<T>> output = queues.get((stage + 1) % queues.size());
+        try {
+            while (running) {
+                Slot<T> slot = input.take();
+                if (stage == 0) {
+                    waitForDeadline();
+                    slot.index = nextIndex++;
+                }
+                long start = System.nanoTime();
+                stages.get(stage).process(slot.frame, slot.index);
+                stageNanos.addAndGet(stage, System.nanoTime() - start);
+                stageFrames.incrementAndGet(stage);
+                output.put(slot);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            Logger.getLogger(FramePipeline.class.getName())
+                    .log(Level.SEVERE, null, ex);
+
+            stop();
+        }
+    }
+
+    private void waitForDeadline() throws InterruptedException {
+        if (periodNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextIndex == 0
+                || now - deadline > MAX_LATE_PERIODS * periodNanos) {
+
+            deadline = now;
+        }
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+        deadline += periodNanos;
+    }
+
+}
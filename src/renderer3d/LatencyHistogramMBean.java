@@ -0,0 +1,28 @@
+package renderer3d;
+
+/**
+ * LatencyHistogramMBean interface.
+ *
+ * JMX view of a LatencyHistogram, times in milliseconds.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public interface LatencyHistogramMBean {
+
+    String getName();
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    void reset();
+
+}
@@ -1,7 +1,5 @@
 package renderer3d;
 
-import java.awt.image.BufferedImage;
-
 /**
  * Material class.
  * 
@@ -10,7 +8,7 @@ import java.awt.image.BufferedImage;
 public class Material {
     
     private final String name;
-    private BufferedImage texture;
+    private Texture texture;
 
     public Material(String name) {
         this.name = name;
@@ -20,11 +18,11 @@ public class Material {
         return name;
     }
 
-    public BufferedImage getTexture() {
+    public Texture getTexture() {
         return texture;
     }
 
-    public void setTexture(BufferedImage texture) {
+    public void setTexture(Texture texture) {
         this.texture = texture;
     }
     
@@ -1,6 +1,5 @@
 package renderer3d;
 
-import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,11 +8,14 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 
 /**
  * MaterialLoader class.
  * 
+ * Textures are taken from the shared TextureCache, so materials that use
+ * the same image, and later loads of the same file, share one decoded
+ * copy.
+ * 
  * @author Leonardo Ono (ono.leo80@gmail.com)
  */
 public class MaterialLoader {
@@ -61,9 +63,7 @@ public class MaterialLoader {
         line = line.substring(beginIndex);
         String textureFile = "/res/" + line;
         try {
-            BufferedImage texture = ImageIO.read(
-                    getClass().getResourceAsStream(textureFile));
-            
+            Texture texture = TextureCache.getShared().get(textureFile);
             currentMaterial.setTexture(texture);
         } catch (IOException ex) {
             Logger.getLogger(
@@ -0,0 +1,297 @@
+package renderer3d;
+
+import java.util.Arrays;
+
+/**
+ * Mesh class.
+ *
+ * Packed indexed triangle mesh. Positions (x, y, z), texture coordinates
+ * (s, t) and normals (x, y, z) are kept in separate float streams, and
+ * each triangle corner has one index into each of them, like in the OBJ
+ * file. Triangles are grouped in ranges that share a material, in the
+ * order they were added.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class Mesh {
+
+    private float[] positions = new float[3 * 64];
+    private float[] uvs = new float[2 * 64];
+    private float[] normals = new float[3 * 64];
+    private int positionCount;
+    private int uvCount;
+    private int normalCount;
+
+    // 3 entries per triangle
+    private int[] positionIndices = new int[3 * 64];
+    private int[] uvIndices = new int[3 * 64];
+    private int[] normalIndices = new int[3 * 64];
+    private int triangleCount;
+
+    // range r covers the triangles from rangeStarts[r] to
+    // rangeStarts[r + 1] - 1, the last one up to triangleCount - 1
+    private Material[] rangeMaterials = new Material[8];
+    private int[] rangeStarts = new int[8];
+    private int rangeCount;
+
+    public Mesh() {
+    }
+
+    /**
+     * Creates a mesh that uses the given streams, index buffers and
+     * ranges as they are. The counts are taken from the lengths. Range r
+     * starts at triangle rangeStarts[r] with rangeMaterials[r], the first
+     * one at triangle 0, so that every triangle has a material.
+     */
+    public Mesh(float[] positions, float[] uvs, float[] normals
+            , int[] positionIndices, int[] uvIndices, int[] normalIndices
+            , Material[] rangeMaterials, int[] rangeStarts) {
+
+        int triangleCount = positionIndices.length / 3;
+        if (rangeMaterials.length != rangeStarts.length
+                || (triangleCount > 0 && rangeStarts.length == 0)
+                || (rangeStarts.length > 0 && rangeStarts[0] != 0)) {
+
+            throw new IllegalArgumentException("Invalid ranges !");
+        }
+        for (int r = 0; r < rangeStarts.length; r++) {
+            if (rangeMaterials[r] == null || rangeStarts[r] > triangleCount
+                    || (r > 0 && rangeStarts[r] < rangeStarts[r - 1])) {
+
+                throw new IllegalArgumentException(
+                        "Invalid range " + r + " !");
+            }
+        }
+        this.positions = positions;
+        this.uvs = uvs;
+        this.normals = normals;
+        this.positionIndices = positionIndices;
+        this.uvIndices = uvIndices;
+        this.normalIndices = normalIndices;
+        positionCount = positions.length / 3;
+        uvCount = uvs.length / 2;
+        normalCount = normals.length / 3;
+        this.triangleCount = triangleCount;
+        this.rangeMaterials = rangeMaterials;
+        this.rangeStarts = rangeStarts;
+        rangeCount = rangeStarts.length;
+    }
+
+    public int getPositionCount() {
+        return positionCount;
+    }
+
+    public int getUvCount() {
+        return uvCount;
+    }
+
+    public int getNormalCount() {
+        return normalCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getUvs() {
+        return uvs;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getPositionIndices() {
+        return positionIndices;
+    }
+
+    public int[] getUvIndices() {
+        return uvIndices;
+    }
+
+    public int[] getNormalIndices() {
+        return normalIndices;
+    }
+
+    public Material getRangeMaterial(int range) {
+        return rangeMaterials[range];
+    }
+
+    public int getRangeStart(int range) {
+        return rangeStarts[range];
+    }
+
+    public int getRangeEnd(int range) {
+        return range + 1 < rangeCount ? rangeStarts[range + 1] : triangleCount;
+    }
+
+    public void addPosition(float x, float y, float z) {
+        if (3 * positionCount == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[3 * positionCount] = x;
+        positions[3 * positionCount + 1] = y;
+        positions[3 * positionCount + 2] = z;
+        positionCount++;
+    }
+
+    public void addUv(float s, float t) {
+        if (2 * uvCount == uvs.length) {
+            uvs = Arrays.copyOf(uvs, uvs.length * 2);
+        }
+        uvs[2 * uvCount] = s;
+        uvs[2 * uvCount + 1] = t;
+        uvCount++;
+    }
+
+    public void addNormal(float x, float y, float z) {
+        if (3 * normalCount == normals.length) {
+            normals = Arrays.copyOf(normals, normals.length * 2);
+        }
+        normals[3 * normalCount] = x;
+        normals[3 * normalCount + 1] = y;
+        normals[3 * normalCount + 2] = z;
+        normalCount++;
+    }
+
+    /**
+     * Appends count positions, 3 floats each, from src.
+     */
+    public void addPositions(float[] src, int count) {
+        positions = ensureCapacity(positions, 3 * (positionCount + count));
+        System.arraycopy(src, 0, positions, 3 * positionCount, 3 * count);
+        positionCount += count;
+    }
+
+    public void addUvs(float[] src, int count) {
+        uvs = ensureCapacity(uvs, 2 * (uvCount + count));
+        System.arraycopy(src, 0, uvs, 2 * uvCount, 2 * count);
+        uvCount += count;
+    }
+
+    public void addNormals(float[] src, int count) {
+        normals = ensureCapacity(normals, 3 * (normalCount + count));
+        System.arraycopy(src, 0, normals, 3 * normalCount, 3 * count);
+        normalCount += count;
+    }
+
+    private static float[] ensureCapacity(float[] a, int length) {
+        if (a.length >= length) {
+            return a;
+        }
+        return Arrays.copyOf(a, Math.max(length, a.length * 2));
+    }
+
+    /**
+     * Triangles added next use this material.
+     */
+    public void setMaterial(Material material) {
+        if (rangeCount > 0 && rangeMaterials[rangeCount - 1] == material) {
+            return;
+        }
+        // an empty range is just replaced
+        if (rangeCount > 0 && rangeStarts[rangeCount - 1] == triangleCount) {
+            rangeMaterials[rangeCount - 1] = material;
+            return;
+        }
+        addRange(material, triangleCount);
+    }
+
+    /**
+     * Starts a range at the triangle start, for meshes whose triangles
+     * are already in place. Ranges must be added in ascending order.
+     */
+    public void addRange(Material material, int start) {
+        if (start < 0 || start > triangleCount
+                || (rangeCount > 0 && start < rangeStarts[rangeCount - 1])) {
+
+            throw new IllegalArgumentException(
+                    "Invalid range start " + start + " !");
+        }
+        if (rangeCount == rangeStarts.length) {
+            int length = Math.max(8, rangeCount * 2);
+            rangeStarts = Arrays.copyOf(rangeStarts, length);
+            rangeMaterials = Arrays.copyOf(rangeMaterials, length);
+        }
+        rangeStarts[rangeCount] = start;
+        rangeMaterials[rangeCount] = material;
+        rangeCount++;
+    }
+
+    /**
+     * Adds a triangle. Each corner is given as 3 consecutive ints in
+     * corners: position, uv and normal index (0 based).
+     */
+    public void addTriangle(int[] corners) {
+        addTriangles(corners, 0, 1);
+    }
+
+    /**
+     * Adds count triangles laid out like in addTriangle(), 9 ints each,
+     * starting at corners[offset].
+     */
+    public void addTriangles(int[] corners, int offset, int count) {
+        if (rangeCount == 0) {
+            throw new IllegalStateException("No material set !");
+        }
+        int length = 3 * (triangleCount + count);
+        if (length > positionIndices.length) {
+            length = Math.max(length, positionIndices.length * 2);
+            positionIndices = Arrays.copyOf(positionIndices, length);
+            uvIndices = Arrays.copyOf(uvIndices, length);
+            normalIndices = Arrays.copyOf(normalIndices, length);
+        }
+        int src = offset;
+        int dst = 3 * triangleCount;
+        for (int i = 0; i < 3 * count; i++) {
+            positionIndices[dst] = corners[src];
+            uvIndices[dst] = corners[src + 1];
+            normalIndices[dst] = corners[src + 2];
+            src += 3;
+            dst++;
+        }
+        triangleCount += count;
+    }
+
+    /**
+     * Drops the unused capacity of the streams once the mesh is complete.
+     */
+    public void trim() {
+        positions = Arrays.copyOf(positions, 3 * positionCount);
+        uvs = Arrays.copyOf(uvs, 2 * uvCount);
+        normals = Arrays.copyOf(normals, 3 * normalCount);
+        positionIndices = Arrays.copyOf(positionIndices, 3 * triangleCount);
+        uvIndices = Arrays.copyOf(uvIndices, 3 * triangleCount);
+        normalIndices = Arrays.copyOf(normalIndices, 3 * triangleCount);
+        rangeStarts = Arrays.copyOf(rangeStarts, rangeCount);
+        rangeMaterials = Arrays.copyOf(rangeMaterials, rangeCount);
+    }
+
+    /**
+     * @return approximate heap size in bytes of the streams, index
+     *     buffers and ranges (materials and textures not included)
+     */
+    public long getByteSize() {
+        long floats = positions.length + uvs.length + normals.length;
+        long ints = positionIndices.length + uvIndices.length
+                + normalIndices.length + rangeStarts.length;
+
+        return 4 * floats + 4 * ints + 8 * rangeMaterials.length;
+    }
+
+    @Override
+    public String toString() {
+        return "Mesh{" + "positions=" + positionCount + ", uvs=" + uvCount
+                + ", normals=" + normalCount + ", triangles=" + triangleCount
+                + ", ranges=" + rangeCount + '}';
+    }
+
+}
@@ -0,0 +1,354 @@
+package renderer3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * MeshCache class.
+ *
+ * Binary copy of a Mesh loaded from an OBJ file, so the text doesn't
+ * have to be parsed again. Layout, little endian:
+ *
+ *   header:  magic, version, source size, source last modified time,
+ *            source CRC32, scale factor and translation used to load it
+ *   counts:  positions, uvs, normals, triangles, ranges
+ *   strings: mtllib file names, then per range the start triangle, the
+ *            index of its mtllib and the material name
+ *   streams: positions, uvs, normals, position, uv and normal indices
+ *
+ * Textures are referenced through the material names only, they are
+ * decoded again by the MaterialLoader.
+ *
+ * The counts and lengths are checked against the size of the file, and
+ * the indices against the streams, so a truncated or corrupt cache is
+ * reported with an IOException instead of failing later.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class MeshCache {
+
+    private static final int MAGIC = 0x4d534843; // "MSHC"
+    public static final int VERSION = 1;
+
+    private final ByteBuffer buffer;
+
+    private final long sourceSize;
+    private final long sourceModified;
+    private final long sourceCrc;
+    private final double[] transform = new double[4];
+
+    private final int positionCount;
+    private final int uvCount;
+    private final int normalCount;
+    private final int triangleCount;
+
+    private final List<String> mtlLibs = new ArrayList<>();
+    private final int[] rangeStarts;
+    private final int[] rangeLibs;
+    private final String[] rangeNames;
+
+    private MeshCache(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        checkRemaining(buffer, 8 * 3 + 8 * 4 + 4 * 6);
+        sourceSize = buffer.getLong();
+        sourceModified = buffer.getLong();
+        sourceCrc = buffer.getLong();
+        for (int i = 0; i < transform.length; i++) {
+            transform[i] = buffer.getDouble();
+        }
+        positionCount = buffer.getInt();
+        uvCount = buffer.getInt();
+        normalCount = buffer.getInt();
+        triangleCount = buffer.getInt();
+        int rangeCount = buffer.getInt();
+        int mtlLibCount = buffer.getInt();
+        if (positionCount < 0 || uvCount < 0 || normalCount < 0
+                || triangleCount < 0 || rangeCount < 0 || mtlLibCount < 0
+                || mtlLibCount > buffer.remaining() / 4
+                || rangeCount > buffer.remaining() / (4 * 3)) {
+
+            throw new IOException("Invalid cache counts !");
+        }
+        for (int i = 0; i < mtlLibCount; i++) {
+            mtlLibs.add(getString(buffer));
+        }
+        rangeStarts = new int[rangeCount];
+        rangeLibs = new int[rangeCount];
+        rangeNames = new String[rangeCount];
+        for (int r = 0; r < rangeCount; r++) {
+            checkRemaining(buffer, 4 * 2);
+            rangeStarts[r] = buffer.getInt();
+            rangeLibs[r] = buffer.getInt();
+            rangeNames[r] = getString(buffer);
+        }
+        long streamSize = 4L * (3L * positionCount + 2L * uvCount
+                + 3L * normalCount + 9L * triangleCount);
+
+        if (buffer.remaining() != streamSize) {
+            throw new IOException("Invalid cache size !");
+        }
+    }
+
+    /**
+     * Maps the cache file and reads its header.
+     *
+     * @return null if the file doesn't exist or was written by another
+     *     version
+     * @throws IOException if the file can't be read or is truncated or
+     *     corrupt
+     */
+    public static MeshCache open(File cacheFile) throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(
+                cacheFile.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        return new MeshCache(buffer);
+    }
+
+    /**
+     * @return true if the cache was written for this source file, as it
+     *     is now, loaded with the same scale factor and translation. The
+     *     content is only hashed when the time stamp differs.
+     */
+    public boolean matches(File source, double scaleFactor
+            , double translateX, double translateY, double translateZ)
+            throws IOException {
+
+        if (transform[0] != scaleFactor || transform[1] != translateX
+                || transform[2] != translateY || transform[3] != translateZ) {
+
+            return false;
+        }
+        if (source.length() != sourceSize) {
+            return false;
+        }
+        return source.lastModified() == sourceModified
+                || crc(source) == sourceCrc;
+    }
+
+    public List<String> getMtlLibs() {
+        return mtlLibs;
+    }
+
+    public int getRangeCount() {
+        return rangeStarts.length;
+    }
+
+    public int getRangeStart(int range) {
+        return rangeStarts[range];
+    }
+
+    /**
+     * @return index in getMtlLibs() of the material library that was
+     *     loaded when the range was created
+     */
+    public int getRangeLib(int range) {
+        return rangeLibs[range];
+    }
+
+    public String getRangeMaterialName(int range) {
+        return rangeNames[range];
+    }
+
+    /**
+     * Creates a mesh with the streams of the cache, copied in bulk from the
+     * mapped file.
+     *
+     * @param materials material of each range, resolved by the caller
+     *     from getRangeMaterialName()
+     * @throws IOException if an index is out of its stream
+     */
+    public Mesh createMesh(Material[] materials) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        float[] positions = new float[3 * positionCount];
+        float[] uvs = new float[2 * uvCount];
+        float[] normals = new float[3 * normalCount];
+        int[] positionIndices = new int[3 * triangleCount];
+        int[] uvIndices = new int[3 * triangleCount];
+        int[] normalIndices = new int[3 * triangleCount];
+        getFloats(data, positions);
+        getFloats(data, uvs);
+        getFloats(data, normals);
+        getInts(data, positionIndices);
+        getInts(data, uvIndices);
+        getInts(data, normalIndices);
+        checkIndices(positionIndices, positionCount);
+        checkIndices(uvIndices, uvCount);
+        checkIndices(normalIndices, normalCount);
+        return new Mesh(positions, uvs, normals
+                , positionIndices, uvIndices, normalIndices
+                , materials, rangeStarts.clone());
+    }
+
+    private static void getFloats(ByteBuffer data, float[] dst) {
+        data.asFloatBuffer().get(dst);
+        data.position(data.position() + 4 * dst.length);
+    }
+
+    private static void getInts(ByteBuffer data, int[] dst) {
+        data.asIntBuffer().get(dst);
+        data.position(data.position() + 4 * dst.length);
+    }
+
+    private static void checkIndices(int[] indices, int count)
+            throws IOException {
+
+        for (int index : indices) {
+            if (index < 0 || index >= count) {
+                throw new IOException("Invalid cache index " + index + " !");
+            }
+        }
+    }
+
+    private static void checkRemaining(ByteBuffer buffer, int size)
+            throws IOException {
+
+        if (buffer.remaining() < size) {
+            throw new IOException("Truncated cache !");
+        }
+    }
+
+    /**
+     * Writes the cache of mesh, loaded from source. rangeLibs holds for
+     * each range of the mesh the index in mtlLibs of its material library.
+     * The file is written next to the final one and then moved, so a
+     * reader never sees it half written.
+     */
+    public static void write(File cacheFile, File source, double scaleFactor
+            , double translateX, double translateY, double translateZ
+            , Mesh mesh, List<String> mtlLibs, int[] rangeLibs)
+            throws IOException {
+
+        int rangeCount = mesh.getRangeCount();
+        byte[][] libNames = new byte[mtlLibs.size()][];
+        byte[][] rangeNames = new byte[rangeCount][];
+        long size = 4 * 2 + 8 * 3 + 8 * 4 + 4 * 6;
+        for (int i = 0; i < libNames.length; i++) {
+            libNames[i] = mtlLibs.get(i).getBytes(StandardCharsets.UTF_8);
+            size += 4 + libNames[i].length;
+        }
+        for (int r = 0; r < rangeCount; r++) {
+            rangeNames[r] = mesh.getRangeMaterial(r).getName()
+                    .getBytes(StandardCharsets.UTF_8);
+
+            size += 4 * 3 + rangeNames[r].length;
+        }
+        size += 4L * (3 * mesh.getPositionCount() + 2 * mesh.getUvCount()
+                + 3 * mesh.getNormalCount() + 9 * mesh.getTriangleCount());
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Mesh too large to cache !");
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putLong(source.length());
+        data.putLong(source.lastModified());
+        data.putLong(crc(source));
+        data.putDouble(scaleFactor);
+        data.putDouble(translateX);
+        data.putDouble(translateY);
+        data.putDouble(translateZ);
+        data.putInt(mesh.getPositionCount());
+        data.putInt(mesh.getUvCount());
+        data.putInt(mesh.getNormalCount());
+        data.putInt(mesh.getTriangleCount());
+        data.putInt(rangeCount);
+        data.putInt(libNames.length);
+        for (byte[] name : libNames) {
+            data.putInt(name.length);
+            data.put(name);
+        }
+        for (int r = 0; r < rangeCount; r++) {
+            data.putInt(mesh.getRangeStart(r));
+            data.putInt(rangeLibs[r]);
+            data.putInt(rangeNames[r].length);
+            data.put(rangeNames[r]);
+        }
+        putFloats(data, mesh.getPositions(), 3 * mesh.getPositionCount());
+        putFloats(data, mesh.getUvs(), 2 * mesh.getUvCount());
+        putFloats(data, mesh.getNormals(), 3 * mesh.getNormalCount());
+        int indexCount = 3 * mesh.getTriangleCount();
+        putInts(data, mesh.getPositionIndices(), indexCount);
+        putInts(data, mesh.getUvIndices(), indexCount);
+        putInts(data, mesh.getNormalIndices(), indexCount);
+        data.flip();
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath()
+                , StandardOpenOption.CREATE, StandardOpenOption.WRITE
+                , StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath()
+                , StandardCopyOption.REPLACE_EXISTING
+                , StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putFloats(ByteBuffer data, float[] src, int length) {
+        data.asFloatBuffer().put(src, 0, length);
+        data.position(data.position() + 4 * length);
+    }
+
+    private static void putInts(ByteBuffer data, int[] src, int length) {
+        data.asIntBuffer().put(src, 0, length);
+        data.position(data.position() + 4 * length);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        checkRemaining(buffer, 4);
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException(
+                    "Invalid cache string length " + length + " !");
+        }
+        byte[] text = new byte[length];
+        buffer.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private static long crc(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(
+                source.toPath(), StandardOpenOption.READ)) {
+
+            ByteBuffer block = ByteBuffer.allocateDirect(1 << 16);
+            while (channel.read(block) > 0) {
+                block.flip();
+                crc.update(block);
+                block.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+}
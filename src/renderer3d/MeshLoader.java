@@ -1,26 +1,63 @@
 package renderer3d;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * MeshLoader class.
- * 
+ *
+ * Loads an OBJ file into a packed Mesh. The file is memory mapped when it
+ * is a plain file (otherwise read into a byte buffer) and parsed straight
+ * from the bytes, numbers included, without creating a String per line
+ * or token.
+ *
+ * With more than one worker the buffer is split at line boundaries into
+ * chunks that are parsed in parallel, then merged in file order. Relative
+ * (negative) indices are resolved during the merge, so they can point
+ * into an earlier chunk.
+ *
+ * Faces can be v, v/vt, v//vn or v/vt/vn, polygons are split into a fan
+ * of triangles. A missing uv or normal refers to an extra (0, 0) uv or
+ * (0, 0, 0) normal added at the end of the streams.
+ *
+ * When the cache is enabled, a file loaded from disk is saved as a
+ * MeshCache next to it (same name plus ".cache") and later loads use that
+ * instead, as long as the OBJ file and the load parameters are the same.
+ *
  * @author Leonardo Ono (ono.leo80@gmail.com)
  */
 public class MeshLoader {
-    
-    private final List<Vec3> points = new ArrayList<>();
-    private final List<Vec3> vts = new ArrayList<>();
-    private final List<Vec3> vns = new ArrayList<>();
-    
-    private final List<Face> faces = new ArrayList<>();
-    
+
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    // chunks smaller than this are not worth a task of their own
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    // exact powers of ten as doubles
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private Mesh mesh = new Mesh();
+
     MaterialLoader mtlLib = new MaterialLoader();
     private Material currentMaterial;
 
@@ -29,15 +66,21 @@ public class MeshLoader {
     private double translateY;
     private double translateZ;
 
-    public MeshLoader() {
-    }
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+
+    private boolean cacheEnabled;
+    private boolean loadedFromCache;
+
+    // mtllib files in load order and, per mesh range, the index of the
+    // one that was current when it was created
+    private final List<String> mtlLibs = new ArrayList<>();
+    private int[] rangeLibs = new int[8];
 
-    public List<Vec3> getVertices() {
-        return points;
+    public MeshLoader() {
     }
 
-    public List<Face> getFaces() {
-        return faces;
+    public Mesh getMesh() {
+        return mesh;
     }
 
     public double getScaleFactor() {
@@ -55,117 +98,317 @@ public class MeshLoader {
     public double getTranslateZ() {
         return translateZ;
     }
-    
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * @return true if the last load() used the binary cache
+     */
+    public boolean isLoadedFromCache() {
+        return loadedFromCache;
+    }
+
+    public static File getCacheFile(File meshFile) {
+        return new File(meshFile.getPath() + ".cache");
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Parses large files in parallel chunks on workerPool, which stays
+     * owned by the caller, when it has more than one worker.
+     */
+    public void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
     public void load(String meshRes, double scaleFactor, double translateX
             , double translateY, double translateZ) throws Exception {
-        
-        points.clear();
-        faces.clear();
-        
+
+        URL url = MeshLoader.class.getResource(meshRes);
+        if (url == null) {
+            throw new IllegalArgumentException(
+                    "Mesh '" + meshRes + "' not found !");
+        }
+        if ("file".equals(url.getProtocol())) {
+            load(new File(url.toURI()), scaleFactor
+                    , translateX, translateY, translateZ);
+
+            return;
+        }
+        try (InputStream is = url.openStream()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] data = new byte[1 << 16];
+            int size;
+            while ((size = is.read(data)) > 0) {
+                bos.write(data, 0, size);
+            }
+            load(ByteBuffer.wrap(bos.toByteArray()), scaleFactor
+                    , translateX, translateY, translateZ);
+        }
+    }
+
+    public void load(File meshFile, double scaleFactor, double translateX
+            , double translateY, double translateZ) throws Exception {
+
+        File cacheFile = getCacheFile(meshFile);
+        if (cacheEnabled && loadCache(meshFile, cacheFile, scaleFactor
+                , translateX, translateY, translateZ)) {
+
+            return;
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(
+                meshFile.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(
+                        "Mesh '" + meshFile + "' too large !");
+            }
+            buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        load(buffer, scaleFactor, translateX, translateY, translateZ);
+
+        if (cacheEnabled) {
+            try {
+                MeshCache.write(cacheFile, meshFile, scaleFactor
+                        , translateX, translateY, translateZ
+                        , mesh, mtlLibs, rangeLibs);
+
+            } catch (IOException ex) {
+                // the cache is optional, the mesh is loaded anyway
+                Logger.getLogger(MeshLoader.class.getName())
+                        .log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * @return false if there is no cache for this load, or it can't be
+     *     used because it is truncated, corrupt or names a material the
+     *     MTL file no longer has. The OBJ is then parsed and the cache
+     *     written again.
+     */
+    private boolean loadCache(File meshFile, File cacheFile
+            , double scaleFactor, double translateX, double translateY
+            , double translateZ) {
+
+        try {
+            MeshCache cache = MeshCache.open(cacheFile);
+            if (cache == null || !cache.matches(meshFile, scaleFactor
+                    , translateX, translateY, translateZ)) {
+
+                return false;
+            }
+            loadCache(cache);
+        } catch (Exception ex) {
+            Logger.getLogger(MeshLoader.class.getName()).log(Level.WARNING
+                    , "Ignoring cache " + cacheFile, ex);
+
+            return false;
+        }
+        this.scaleFactor = scaleFactor;
+        this.translateX = translateX;
+        this.translateY = translateY;
+        this.translateZ = translateZ;
+        loadedFromCache = true;
+        return true;
+    }
+
+    private void loadCache(MeshCache cache) throws Exception {
+        Material[] materials = new Material[cache.getRangeCount()];
+        int[] libs = new int[Math.max(8, cache.getRangeCount())];
+        int range = 0;
+        for (int lib = 0; lib < cache.getMtlLibs().size(); lib++) {
+            // unlike parseMtlLib(), errors are thrown so the OBJ is used
+            mtlLib.load("/res/" + cache.getMtlLibs().get(lib));
+            while (range < cache.getRangeCount()
+                    && cache.getRangeLib(range) == lib) {
+
+                String name = cache.getRangeMaterialName(range);
+                materials[range] = mtlLib.getMaterials().get(name);
+                if (materials[range] == null) {
+                    throw new IOException(
+                            "Material '" + name + "' not found !");
+                }
+                libs[range] = lib;
+                range++;
+            }
+        }
+        if (range < cache.getRangeCount()) {
+            throw new IOException("Invalid cache ranges !");
+        }
+        mesh = cache.createMesh(materials);
+        mtlLibs.clear();
+        mtlLibs.addAll(cache.getMtlLibs());
+        rangeLibs = libs;
+    }
+
+    /**
+     * Parses the OBJ data from index 0 to the limit of buffer.
+     */
+    public void load(ByteBuffer buffer, double scaleFactor, double translateX
+            , double translateY, double translateZ) throws Exception {
+
+        mesh = new Mesh();
+        currentMaterial = null;
+        loadedFromCache = false;
+        mtlLibs.clear();
+
         this.scaleFactor = scaleFactor;
         this.translateX = translateX;
         this.translateY = translateY;
         this.translateZ = translateZ;
-        
-        InputStream is = MeshLoader.class.getResourceAsStream(meshRes);
-        InputStreamReader isr = new InputStreamReader(is);
-        BufferedReader br = new BufferedReader(isr);
-        String line;
-        while ((line = br.readLine()) != null) {
-            line = line.trim();
-            
-            if (line.startsWith("v ")) {
-                parseVertex(line);
-            }
-            else if (line.startsWith("vt ")) {
-                parseVTs(line);
-            }
-            else if (line.startsWith("vn ")) {
-                parseVNs(line);
-            }
-            else if (line.startsWith("f ")) {
-                parseFace(line);
-            }
-            else if (line.startsWith("mtllib ")) {
-                parseMtlLib(line);
-            }
-            else if (line.startsWith("usemtl ")) {
-                parseUseMtl(line);
-            }
-        }
-        br.close();
-    }
-
-    private void parseVertex(String line) {
-        int beginIndex = "v ".length();
-        line = line.substring(beginIndex);
-        line = line.trim();
-        String[] data = line.split(" ");
-        double x = Double.parseDouble(data[0]);
-        double y = Double.parseDouble(data[1]);
-        double z = Double.parseDouble(data[2]);
-        double stx = x * scaleFactor + translateX;
-        double sty = y * scaleFactor + translateY;
-        double stz = z * scaleFactor + translateZ;
-        Vec3 v = new Vec3(stx, sty, stz);
-        points.add(v);
-    }
-    
-    private void parseVTs(String line) {
-        String[] data = line.split(" ");
-        double x = Double.parseDouble(data[1]);
-        double y = Double.parseDouble(data[2]);
-        Vec3 v = new Vec3(x, y, 1);
-        vts.add(v);
-    }
-
-    private void parseVNs(String line) {
-        String[] data = line.split(" ");
-        double x = Double.parseDouble(data[1]);
-        double y = Double.parseDouble(data[2]);
-        double z = Double.parseDouble(data[3]);
-        Vec3 v = new Vec3(x, y, z);
-        vns.add(v);
-    }
-    
-    private void parseFace(String line) {
-        String[] data = line.split(" ");
+
+        List<Chunk> chunks = split(buffer);
+        workerPool.invokeAll(chunks);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        merge(chunks);
+        mesh.trim();
+    }
+
+    private List<Chunk> split(ByteBuffer buffer) {
+        int size = buffer.limit();
+        int chunkCount = workerPool.getTaskCount(size / MIN_CHUNK_SIZE);
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= chunkCount && start < size; i++) {
+            int end = Math.max((int) ((long) size * i / chunkCount), start + 1);
+            // move the end past the next new line
+            while (end < size && buffer.get(end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new Chunk(buffer, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private void merge(List<Chunk> chunks) {
+        int positionTotal = 0;
+        int uvTotal = 0;
+        int normalTotal = 0;
+        for (Chunk chunk : chunks) {
+            positionTotal += chunk.positionCount;
+            uvTotal += chunk.uvCount;
+            normalTotal += chunk.normalCount;
+        }
+
+        boolean missingUv = false;
+        boolean missingNormal = false;
+        int positionOffset = 0;
+        int uvOffset = 0;
+        int normalOffset = 0;
+        for (Chunk chunk : chunks) {
+            mesh.addPositions(chunk.positions, chunk.positionCount);
+            mesh.addUvs(chunk.uvs, chunk.uvCount);
+            mesh.addNormals(chunk.normals, chunk.normalCount);
+
+            int[] corners = chunk.corners;
+            for (int i = 0; i < chunk.relativeCount; i++) {
+                int k = chunk.relative[i];
+                int offset = k % 3 == 0 ? positionOffset
+                        : k % 3 == 1 ? uvOffset : normalOffset;
+
+                corners[k] += offset;
+            }
+            for (int k = 0; k < 9 * chunk.triangleCount; k += 3) {
+                check(corners[k], positionTotal, "vertex");
+                if (corners[k + 1] == MISSING) {
+                    corners[k + 1] = uvTotal;
+                    missingUv = true;
+                }
+                else {
+                    check(corners[k + 1], uvTotal, "uv");
+                }
+                if (corners[k + 2] == MISSING) {
+                    corners[k + 2] = normalTotal;
+                    missingNormal = true;
+                }
+                else {
+                    check(corners[k + 2], normalTotal, "normal");
+                }
+            }
+
+            // triangles and mtllib / usemtl lines in file order
+            int triangle = 0;
+            for (int i = 0; i < chunk.eventCount; i++) {
+                int eventTriangle = chunk.eventTriangles[i];
+                if (eventTriangle > triangle) {
+                    addTriangles(chunk, triangle, eventTriangle);
+                    triangle = eventTriangle;
+                }
+                if (chunk.eventMtlLib[i]) {
+                    parseMtlLib(chunk.eventNames[i]);
+                }
+                else {
+                    parseUseMtl(chunk.eventNames[i]);
+                }
+            }
+            if (chunk.triangleCount > triangle) {
+                addTriangles(chunk, triangle, chunk.triangleCount);
+            }
+
+            positionOffset += chunk.positionCount;
+            uvOffset += chunk.uvCount;
+            normalOffset += chunk.normalCount;
+        }
+        if (missingUv) {
+            mesh.addUv(0, 0);
+        }
+        if (missingNormal) {
+            mesh.addNormal(0, 0, 0);
+        }
+    }
+
+    private static void check(int index, int count, String type) {
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException(
+                    "Invalid " + type + " index " + (index + 1) + " !");
+        }
+    }
+
+    private void addTriangles(Chunk chunk, int first, int last) {
         if (currentMaterial == null) {
-            throw new NullPointerException();
-        }
-        Face face = new Face(currentMaterial);
-        for (int i = 1; i < data.length; i++) {
-            String[] data2 = data[i].split("/");
-            int pointIndex = Integer.parseInt(data2[0]);
-            int vtIndex = Integer.parseInt(data2[1]);
-            int vnIndex = Integer.parseInt(data2[2]);
-            Vec3 point = points.get(pointIndex - 1);
-            Vec3 vt = vts.get(vtIndex - 1);
-            Vec3 vn = vns.get(vnIndex - 1);
-            Vertex vertex = new Vertex(point, vt, vn);
-            face.addPoint(vertex);
-        }
-        faces.add(face);        
-    }
-    
-    private void parseMtlLib(String line) {
-        int beginIndex = "mtllib ".length();
-        line = line.substring(beginIndex);
-        String mtlLibFile = "/res/" + line;
+            throw new IllegalStateException("No material set !");
+        }
+        int rangeCount = mesh.getRangeCount();
+        mesh.setMaterial(currentMaterial);
+        if (mesh.getRangeCount() > rangeCount) {
+            if (rangeCount == rangeLibs.length) {
+                rangeLibs = Arrays.copyOf(rangeLibs, rangeCount * 2);
+            }
+            rangeLibs[rangeCount] = mtlLibs.size() - 1;
+        }
+        mesh.addTriangles(chunk.corners, 9 * first, last - first);
+    }
+
+    private void parseMtlLib(String name) {
+        mtlLibs.add(name);
+        String mtlLibFile = "/res/" + name;
         try {
             mtlLib.load(mtlLibFile);
         } catch (Exception ex) {
             Logger.getLogger(MeshLoader.class.getName())
                     .log(Level.SEVERE, null, ex);
-            
+
             System.exit(1);
         }
-    }    
+    }
 
-    private void parseUseMtl(String line) {
-        int beginIndex = "usemtl ".length();
-        line = line.substring(beginIndex);
-        String mtlName = line;
+    private void parseUseMtl(String mtlName) {
         currentMaterial = mtlLib.getMaterials().get(mtlName);
         if (currentMaterial == null) {
             throw new RuntimeException(
@@ -175,9 +418,405 @@ public class MeshLoader {
 
     @Override
     public String toString() {
-        return "MeshLoader{" + "vertices=" + points + ", faces=" + faces 
-            + ", scaleFactor=" + scaleFactor + ", translateX=" + translateX 
+        return "MeshLoader{" + "mesh=" + mesh
+            + ", scaleFactor=" + scaleFactor + ", translateX=" + translateX
             + ", translateY=" + translateY + '}';
     }
-    
+
+    /**
+     * Parses the lines from start to end of the buffer into streams of its
+     * own. The bytes are copied in blocks into a window that always holds
+     * whole lines. Absolute indices are made 0 based. Relative ones become an
+     * index local to the chunk (negative if it points into an earlier
+     * chunk) and their position in corners is kept in relative, so the
+     * merge can add the chunk offset.
+     */
+    private class Chunk implements Callable<Void> {
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+
+        // window of the buffer, data[0] is the byte at dataStart, and the
+        // current line goes from pos to lineEnd (the new line or dataLimit)
+        private byte[] data = new byte[1 << 16];
+        private int dataStart;
+        private int dataLimit;
+        private int pos;
+        private int lineEnd;
+
+        private float[] positions = new float[3 * 256];
+        private float[] uvs = new float[2 * 256];
+        private float[] normals = new float[3 * 256];
+        private int positionCount;
+        private int uvCount;
+        private int normalCount;
+
+        // 9 ints per triangle: position, uv and normal index per corner
+        private int[] corners = new int[9 * 256];
+        private int triangleCount;
+        private int[] relative = new int[16];
+        private int relativeCount;
+
+        // corners of the current face, 3 per corner
+        private int[] face = new int[3 * 8];
+        private boolean[] faceRelative = new boolean[3 * 8];
+        private boolean lastRelative;
+
+        private int[] eventTriangles = new int[8];
+        private String[] eventNames = new String[8];
+        private boolean[] eventMtlLib = new boolean[8];
+        private int eventCount;
+
+        public Chunk(ByteBuffer buffer, int start, int end) {
+            // own position for the bulk reads
+            this.buffer = buffer.duplicate();
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() {
+            dataStart = start;
+            dataLimit = 0;
+            pos = 0;
+            while (nextLine()) {
+                skipSpaces();
+                int b0 = byteAt(pos);
+                int b1 = byteAt(pos + 1);
+                int b2 = byteAt(pos + 2);
+                if (b0 == 'v' && isSpace(b1)) {
+                    pos += 1;
+                    parseVertex();
+                }
+                else if (b0 == 'v' && b1 == 't' && isSpace(b2)) {
+                    pos += 2;
+                    parseVT();
+                }
+                else if (b0 == 'v' && b1 == 'n' && isSpace(b2)) {
+                    pos += 2;
+                    parseVN();
+                }
+                else if (b0 == 'f' && isSpace(b1)) {
+                    pos += 1;
+                    parseFace();
+                }
+                else if (keyword("mtllib")) {
+                    addEvent(parseName(), true);
+                }
+                else if (keyword("usemtl")) {
+                    addEvent(parseName(), false);
+                }
+                pos = lineEnd + 1;
+            }
+            return null;
+        }
+
+        /**
+         * Finds the end of the line starting at pos, reading more of the
+         * buffer into the window if needed.
+         *
+         * @return false if there are no more lines
+         */
+        private boolean nextLine() {
+            int from = pos;
+            while (true) {
+                for (int i = from; i < dataLimit; i++) {
+                    if (data[i] == '\n') {
+                        lineEnd = i;
+                        return true;
+                    }
+                }
+                int remaining = end - (dataStart + dataLimit);
+                if (remaining == 0) {
+                    lineEnd = dataLimit;
+                    return pos < dataLimit;
+                }
+                // keep the partial line, grow the window if it's all line
+                int kept = dataLimit - pos;
+                if (pos == 0) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                else {
+                    System.arraycopy(data, pos, data, 0, kept);
+                    dataStart += pos;
+                    pos = 0;
+                }
+                int size = Math.min(remaining, data.length - kept);
+                buffer.position(dataStart + kept);
+                buffer.get(data, kept, size);
+                dataLimit = kept + size;
+                from = kept;
+            }
+        }
+
+        private int byteAt(int index) {
+            return index < lineEnd ? data[index] : '\n';
+        }
+
+        private int offset() {
+            return dataStart + pos;
+        }
+
+        private boolean isSpace(int b) {
+            return b == ' ' || b == '\t';
+        }
+
+        private boolean isEndOfLine(int b) {
+            return b == '\n' || b == '\r' || b == '#';
+        }
+
+        private void skipSpaces() {
+            while (pos < lineEnd && isSpace(data[pos])) {
+                pos++;
+            }
+        }
+
+        private boolean hasMore() {
+            skipSpaces();
+            return !isEndOfLine(byteAt(pos));
+        }
+
+        private boolean keyword(String keyword) {
+            int length = keyword.length();
+            for (int i = 0; i < length; i++) {
+                if (byteAt(pos + i) != keyword.charAt(i)) {
+                    return false;
+                }
+            }
+            if (!isSpace(byteAt(pos + length))) {
+                return false;
+            }
+            pos += length;
+            return true;
+        }
+
+        private void parseVertex() {
+            double x = parseDouble();
+            double y = parseDouble();
+            double z = parseDouble();
+            if (3 * positionCount == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            int k = 3 * positionCount;
+            positions[k] = (float) (x * scaleFactor + translateX);
+            positions[k + 1] = (float) (y * scaleFactor + translateY);
+            positions[k + 2] = (float) (z * scaleFactor + translateZ);
+            positionCount++;
+        }
+
+        private void parseVT() {
+            double s = parseDouble();
+            double t = hasMore() ? parseDouble() : 0;
+            if (2 * uvCount == uvs.length) {
+                uvs = Arrays.copyOf(uvs, uvs.length * 2);
+            }
+            uvs[2 * uvCount] = (float) s;
+            uvs[2 * uvCount + 1] = (float) t;
+            uvCount++;
+        }
+
+        private void parseVN() {
+            double x = parseDouble();
+            double y = parseDouble();
+            double z = parseDouble();
+            if (3 * normalCount == normals.length) {
+                normals = Arrays.copyOf(normals, normals.length * 2);
+            }
+            int k = 3 * normalCount;
+            normals[k] = (float) x;
+            normals[k + 1] = (float) y;
+            normals[k + 2] = (float) z;
+            normalCount++;
+        }
+
+        private void parseFace() {
+            int cornerCount = 0;
+            while (hasMore()) {
+                if (3 * cornerCount == face.length) {
+                    face = Arrays.copyOf(face, face.length * 2);
+                    faceRelative = Arrays.copyOf(faceRelative, face.length);
+                }
+                int k = 3 * cornerCount;
+                setFaceIndex(k, parseIndex(positionCount));
+                setFaceIndex(k + 1, MISSING);
+                setFaceIndex(k + 2, MISSING);
+                if (byteAt(pos) == '/') {
+                    pos++;
+                    if (byteAt(pos) != '/') {
+                        setFaceIndex(k + 1, parseIndex(uvCount));
+                    }
+                    if (byteAt(pos) == '/') {
+                        pos++;
+                        setFaceIndex(k + 2, parseIndex(normalCount));
+                    }
+                }
+                cornerCount++;
+            }
+            if (cornerCount < 3) {
+                throw new IllegalArgumentException(
+                        "Invalid face at byte " + offset() + " !");
+            }
+
+            // fan: (1, 2, 3), (1, 3, 4), ...
+            for (int c = 2; c < cornerCount; c++) {
+                if (9 * triangleCount == corners.length) {
+                    corners = Arrays.copyOf(corners, corners.length * 2);
+                }
+                int k = 9 * triangleCount;
+                addCorner(k, 0);
+                addCorner(k + 3, 3 * (c - 1));
+                addCorner(k + 6, 3 * c);
+                triangleCount++;
+            }
+        }
+
+        private void setFaceIndex(int f, int index) {
+            face[f] = index;
+            faceRelative[f] = index != MISSING && lastRelative;
+            lastRelative = false;
+        }
+
+        private void addCorner(int k, int f) {
+            for (int i = 0; i < 3; i++) {
+                corners[k + i] = face[f + i];
+                if (faceRelative[f + i]) {
+                    if (relativeCount == relative.length) {
+                        relative = Arrays.copyOf(relative, relativeCount * 2);
+                    }
+                    relative[relativeCount++] = k + i;
+                }
+            }
+        }
+
+        /**
+         * @return the 0 based index, local to the chunk for a relative
+         *     (negative) OBJ index, in which case lastRelative is set
+         */
+        private int parseIndex(int count) {
+            int value = parseInt();
+            if (value > 0) {
+                return value - 1;
+            }
+            else if (value < 0) {
+                lastRelative = true;
+                return count + value;
+            }
+            throw new IllegalArgumentException(
+                    "Invalid index 0 at byte " + offset() + " !");
+        }
+
+        private int parseInt() {
+            boolean negative = false;
+            if (byteAt(pos) == '-') {
+                negative = true;
+                pos++;
+            }
+            int b = byteAt(pos);
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException(
+                        "Invalid number at byte " + offset() + " !");
+            }
+            int value = 0;
+            while (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                b = byteAt(++pos);
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parses the next number on the line. Up to 15 significant digits
+         * scaled by a power of ten up to 22 are converted exactly, giving
+         * the same result as Double.parseDouble(), anything else falls
+         * back to it.
+         */
+        private double parseDouble() {
+            skipSpaces();
+            int first = pos;
+            int firstOffset = offset();
+            boolean negative = false;
+            int b = byteAt(pos);
+            if (b == '-' || b == '+') {
+                negative = b == '-';
+                b = byteAt(++pos);
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean valid = false;
+            while (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+                valid = true;
+                b = byteAt(++pos);
+            }
+            if (b == '.') {
+                b = byteAt(++pos);
+                while (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa > 0) {
+                        digits++;
+                    }
+                    exponent--;
+                    valid = true;
+                    b = byteAt(++pos);
+                }
+            }
+            if (!valid) {
+                throw new IllegalArgumentException(
+                        "Invalid number at byte " + firstOffset + " !");
+            }
+            if (b == 'e' || b == 'E') {
+                pos++;
+                if (byteAt(pos) == '+') {
+                    pos++;
+                }
+                exponent += parseInt();
+                b = byteAt(pos);
+            }
+            if (!isSpace(b) && !isEndOfLine(b)) {
+                throw new IllegalArgumentException(
+                        "Invalid number at byte " + firstOffset + " !");
+            }
+
+            if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+                double value = exponent < 0 ? mantissa / POW10[-exponent]
+                        : mantissa * POW10[exponent];
+
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(
+                    data, first, pos - first, StandardCharsets.US_ASCII));
+        }
+
+        private String parseName() {
+            skipSpaces();
+            int first = pos;
+            int last = pos;
+            while (pos < lineEnd && data[pos] != '\r') {
+                if (!isSpace(data[pos])) {
+                    last = pos + 1;
+                }
+                pos++;
+            }
+            return new String(data, first, last - first, StandardCharsets.UTF_8);
+        }
+
+        private void addEvent(String name, boolean mtlLib) {
+            if (eventCount == eventNames.length) {
+                eventTriangles = Arrays.copyOf(eventTriangles, eventCount * 2);
+                eventNames = Arrays.copyOf(eventNames, eventCount * 2);
+                eventMtlLib = Arrays.copyOf(eventMtlLib, eventCount * 2);
+            }
+            eventTriangles[eventCount] = triangleCount;
+            eventNames[eventCount] = name;
+            eventMtlLib[eventCount] = mtlLib;
+            eventCount++;
+        }
+
+    }
+
 }
@@ -0,0 +1,73 @@
+package renderer3d;
+
+import java.util.Arrays;
+
+/**
+ * NormalBuffer class.
+ *
+ * Unit normals in view space (x to the right, y up, z towards the
+ * camera), one per pixel, stored as separate x, y and z arrays row by
+ * row like the DepthBuffer they go with. Pixels nothing was drawn on
+ * hold (0, 0, 0).
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class NormalBuffer {
+
+    private final int width;
+    private final int height;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+
+    public NormalBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        x = new float[width * height];
+        y = new float[width * height];
+        z = new float[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[] getX() {
+        return x;
+    }
+
+    public float[] getY() {
+        return y;
+    }
+
+    public float[] getZ() {
+        return z;
+    }
+
+    /**
+     * Normalizes (nx, ny, nz) and stores it at index. No bounds check.
+     */
+    public void setUnchecked(int index, double nx, double ny, double nz) {
+        double length2 = nx * nx + ny * ny + nz * nz;
+        if (length2 > 0) {
+            double s = 1 / Math.sqrt(length2);
+            nx *= s;
+            ny *= s;
+            nz *= s;
+        }
+        x[index] = (float) nx;
+        y[index] = (float) ny;
+        z[index] = (float) nz;
+    }
+
+    public void clear() {
+        Arrays.fill(x, 0);
+        Arrays.fill(y, 0);
+        Arrays.fill(z, 0);
+    }
+
+}
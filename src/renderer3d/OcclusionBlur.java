@@ -0,0 +1,230 @@
+package renderer3d;
+
+/**
+ * OcclusionBlur class.
+ *
+ * Blurs a single channel occlusion buffer in two separable passes,
+ * horizontal (src to tmp) then vertical (tmp to dst). Both passes work
+ * on ranges of rows, so they can be split into bands and run in
+ * parallel, but the vertical pass must only start after the horizontal
+ * one has finished.
+ *
+ * Modes:
+ * BOX - box filter, O(radius) per pixel.
+ * RUNNING_SUM - same box filter using running sums, O(1) per pixel
+ *     whatever the radius.
+ * GAUSSIAN - gaussian filter, O(radius) per pixel.
+ * BILATERAL - gaussian filter where samples are also weighted by their
+ *     depth difference to the center pixel, so edges are preserved.
+ *
+ * Near the borders only the samples inside the buffer are averaged.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class OcclusionBlur {
+
+    public static enum Mode { BOX, RUNNING_SUM, GAUSSIAN, BILATERAL }
+
+    private final int width;
+    private final int height;
+    private final float[] src;
+    private final float[] tmp;
+    private final float[] dst;
+    private final DepthBuffer depthBuffer;
+
+    private Mode mode = Mode.RUNNING_SUM;
+    private int radius = 3;
+    private double[] weights;
+
+    // keeps the bilateral weights finite when depths match exactly
+    private static final double DEPTH_EPSILON = 0.1;
+
+    // depth values below this are background
+    private static final double BACKGROUND_DEPTH = -1e5;
+
+    public OcclusionBlur(int width, int height
+            , float[] src, float[] dst, DepthBuffer depthBuffer) {
+
+        this.width = width;
+        this.height = height;
+        this.src = src;
+        this.dst = dst;
+        this.depthBuffer = depthBuffer;
+        tmp = new float[width * height];
+        initWeights();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        initWeights();
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public void setRadius(int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid blur radius " + radius + " !");
+        }
+        this.radius = radius;
+        initWeights();
+    }
+
+    private void initWeights() {
+        weights = new double[radius * 2 + 1];
+        double sigma = Math.max(radius / 2.0, 0.5);
+        for (int i = -radius; i <= radius; i++) {
+            if (mode == Mode.GAUSSIAN || mode == Mode.BILATERAL) {
+                weights[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+            }
+            else {
+                weights[i + radius] = 1;
+            }
+        }
+    }
+
+    void horizontalRows(int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            if (mode == Mode.RUNNING_SUM) {
+                runningSum(src, tmp, row, 1, width);
+            }
+            else {
+                for (int x = 0; x < width; x++) {
+                    tmp[row + x] = filter(src, x, y, true);
+                }
+            }
+        }
+    }
+
+    void verticalRows(int y0, int y1) {
+        if (mode == Mode.RUNNING_SUM) {
+            verticalRunningSum(y0, y1);
+            return;
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[row + x] = filter(tmp, x, y, false);
+            }
+        }
+    }
+
+    /**
+     * Filters the sample (x, y) along one axis.
+     */
+    private float filter(float[] in, int x, int y, boolean horizontal) {
+        int index = y * width + x;
+        int pos = horizontal ? x : y;
+        int stride = horizontal ? 1 : width;
+        int length = horizontal ? width : height;
+        int i0 = Math.max(pos - radius, 0) - pos;
+        int i1 = Math.min(pos + radius, length - 1) - pos;
+        double sum = 0;
+        double weightSum = 0;
+        if (mode == Mode.BILATERAL) {
+            double z = depthBuffer.getUnchecked(x, y);
+            if (z < BACKGROUND_DEPTH) {
+                return in[index];
+            }
+            for (int i = i0; i <= i1; i++) {
+                int si = index + i * stride;
+                double sz = horizontal ? depthBuffer.getUnchecked(x + i, y)
+                        : depthBuffer.getUnchecked(x, y + i);
+
+                if (sz < BACKGROUND_DEPTH) {
+                    continue;
+                }
+                double w = weights[i + radius] / (DEPTH_EPSILON + Math.abs(sz - z));
+                sum += w * in[si];
+                weightSum += w;
+            }
+        }
+        else {
+            for (int i = i0; i <= i1; i++) {
+                double w = weights[i + radius];
+                sum += w * in[index + i * stride];
+                weightSum += w;
+            }
+        }
+        return (float) (sum / weightSum);
+    }
+
+    /**
+     * Box filters the line of length samples that starts at index first.
+     * The window sum is updated by adding the sample that enters and
+     * removing the one that leaves.
+     */
+    private void runningSum(float[] in, float[] out
+            , int first, int stride, int length) {
+
+        double sum = 0;
+        int count = 0;
+        for (int p = 0; p < Math.min(radius, length); p++) {
+            sum += in[first + p * stride];
+            count++;
+        }
+        for (int p = 0; p < length; p++) {
+            int enter = p + radius;
+            if (enter < length) {
+                sum += in[first + enter * stride];
+                count++;
+            }
+            int leave = p - radius - 1;
+            if (leave >= 0) {
+                sum -= in[first + leave * stride];
+                count--;
+            }
+            out[first + p * stride] = (float) (sum / count);
+        }
+    }
+
+    /**
+     * Vertical running sum walked row by row, so memory is read in order.
+     * The first row of the band is summed in full, the next ones are
+     * derived from the row above it (its average times its sample count).
+     */
+    private void verticalRunningSum(int y0, int y1) {
+        for (int x = 0; x < width; x++) {
+            double sum = 0;
+            for (int y = Math.max(y0 - radius, 0)
+                    ; y <= Math.min(y0 + radius, height - 1); y++) {
+
+                sum += tmp[y * width + x];
+            }
+            dst[y0 * width + x] = (float) (sum / getCount(y0));
+        }
+        for (int y = y0 + 1; y < y1; y++) {
+            int row = y * width;
+            int enter = y + radius < height ? (y + radius) * width : -1;
+            int leave = y - radius - 1 >= 0 ? (y - radius - 1) * width : -1;
+            double previousCount = getCount(y - 1);
+            double count = getCount(y);
+            for (int x = 0; x < width; x++) {
+                double sum = dst[row - width + x] * previousCount;
+                if (enter >= 0) {
+                    sum += tmp[enter + x];
+                }
+                if (leave >= 0) {
+                    sum -= tmp[leave + x];
+                }
+                dst[row + x] = (float) (sum / count);
+            }
+        }
+    }
+
+    /**
+     * @return how many rows of the vertical window of row y are inside
+     *     the buffer
+     */
+    private int getCount(int y) {
+        return Math.min(y + radius, height - 1) - Math.max(y - radius, 0) + 1;
+    }
+
+}
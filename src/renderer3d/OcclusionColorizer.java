@@ -0,0 +1,58 @@
+package renderer3d;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * OcclusionColorizer class.
+ *
+ * Turns a single channel occlusion buffer (1 = not occluded, 0 = fully
+ * occluded) into an ARGB image that can be drawn over the flat shaded
+ * image. The image is only allocated the first time getImage() is called.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class OcclusionColorizer {
+
+    private final int width;
+    private final int height;
+    private final float[] occlusion;
+    private BufferedImage image;
+    private int[] pixels;
+
+    public OcclusionColorizer(int width, int height, float[] occlusion) {
+        this.width = width;
+        this.height = height;
+        this.occlusion = occlusion;
+    }
+
+    public BufferedImage getImage() {
+        if (image == null) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        return image;
+    }
+
+    /**
+     * getImage() must have been called before.
+     */
+    void colorizeRows(int y0, int y1) {
+        for (int index = y0 * width; index < y1 * width; index++) {
+            pixels[index] = getColor(occlusion[index]);
+        }
+    }
+
+    public void colorize() {
+        getImage();
+        colorizeRows(0, height);
+    }
+
+    public static int getColor(double occlusion) {
+        int r = (int) (occlusion * 255);
+        int b = (int) (64 - occlusion * 64);
+        int a = (int) (255 - occlusion * 255);
+        return (a << 24) | (r << 16) | b;
+    }
+
+}
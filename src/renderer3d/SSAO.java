@@ -1,129 +1,1131 @@
 package renderer3d;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import javax.swing.JPanel;
 
 /**
  * SSAO class.
- * 
+ *
+ * The occlusion can be computed on a downsampled copy of the depth buffer
+ * (see setDownsample()) and then upsampled to full resolution with a
+ * depth-aware bilateral filter, so it doesn't bleed across depth edges.
+ *
+ * The result is a single channel float occlusion buffer (see 
+ * getOcclusion()), 1 meaning not occluded and 0 fully occluded. 
+ * getBlurredOcclusion() blurs it with an OcclusionBlur, whose mode and 
+ * radius can be changed through getBlur(). The ARGB images returned by
+ * getSSAO() and getBlurred() are only produced when asked for.
+ *
+ * Two kernels are available (see setKernel()). HORIZON marches a full
+ * circle of directions over the depth buffer and measures the horizon
+ * angle. HEMISPHERE needs a NormalBuffer: it takes a few points in the
+ * hemisphere above each pixel, oriented by its normal and randomly
+ * rotated in a 4x4 pattern, and counts how many of them are behind the
+ * depth buffer, as in learnopengl.com/Advanced-Lighting/SSAO. Since no
+ * samples are spent below the surface, it needs far fewer of them.
+ *
+ * In hierarchical mode (see setHierarchical()) the HORIZON kernel marches
+ * a DepthPyramid of the depth buffer: the first HI_Z_NEAR_STEPS steps are
+ * taken one pixel apart on the buffer itself, then every further group
+ * doubles the stride and reads the level whose texels are as large as
+ * it, which keeps the nearest depth of the pixels skipped. This
+ * needs about a third of the samples for 64 steps, and the coarse levels
+ * stay in cache.
+ *
+ * In temporal mode (see setTemporalFrames()) each frame only computes a
+ * rotating subset of the pixels. The others reuse the occlusion of the
+ * previous frame, found by reprojecting their depth with the previous
+ * and current VertexTransform matrices. History whose depth doesn't
+ * match (disocclusions, pixels coming from off screen) is rejected and
+ * those pixels are computed as well.
+ *
+ * In incremental mode (see setIncremental()) only the pixels that can
+ * see a dirty tile of the depth buffer are computed again, the others
+ * keep the occlusion of the previous process(). The dirty tiles are
+ * cleared afterwards.
+ *
  * @author Leonardo Ono (ono.leo@gmail.com);
  */
 public class SSAO extends JPanel {
-    
+
+    public static enum Kernel { HORIZON, HEMISPHERE }
+
     private final DepthBuffer depthBuffer;
-    private final BufferedImage ssao;
-    private final BufferedImage ssaoBlurred;
-    private final Graphics2D og;
     private final int width;
     private final int height;
-    
+
+    private final int directions;
+    private final int steps;
+
+    private int downsample = 1;
+
+    private Kernel kernel = Kernel.HORIZON;
+    private NormalBuffer normalBuffer;
+    private double radius;
+    private int hemisphereSamples;
+    // hemisphere samples, z along the normal, and 4x4 rotation vectors
+    private double[] kernelX;
+    private double[] kernelY;
+    private double[] kernelZ;
+    private final double[] noiseX = new double[16];
+    private final double[] noiseY = new double[16];
+    private int noiseOffset;
+
+    private int temporalFrames = 1;
+    private double historyWeight = 0.25;
+    private VertexTransform transform;
+    private int frame;
+    private boolean historyValid;
+    private float[] history;
+    private double[] historyDepth;
+    private final double[] view = new double[12];
+    private final double[] previousView = new double[12];
+    // current view space to previous view space, row-major 3x4
+    private final double[] reprojection = new double[12];
+    private double focalLength;
+    private double halfWidth;
+    private double halfHeight;
+
+    private boolean incremental;
+    private boolean hierarchical;
+    // of aoDepth, only created and built in hierarchical mode
+    private DepthPyramid pyramid;
+    private double[][] pyramidNearest;
+    private int[] pyramidWidth;
+    private boolean cacheValid;
+    private int processedTileCount;
+    // pixels of each aoDepth row the last process() computed
+    private int[] computedPixels;
+    // DepthBuffer dirty tiles processed by each pass, null for all of them
+    private boolean[] downsampleTiles;
+    private boolean[] occlusionTiles;
+    private boolean[] upsampleTiles;
+    private final int tileColumns;
+    private final int tileRows;
+
+    // depth buffer the occlusion is computed from, either depthBuffer
+    // itself or its downsampled copy
+    private DepthBuffer aoDepth;
+    private int aoWidth;
+    private int aoHeight;
+    private float[] occlusion;
+
+    // full resolution occlusion, the same array as occlusion when
+    // not downsampled
+    private final float[] fullOcclusion;
+    private final float[] blurredOcclusion;
+    private final OcclusionBlur blur;
+    private final OcclusionColorizer colorizer;
+    private final OcclusionColorizer blurredColorizer;
+
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+    private final List<Band> downsampleBands = new ArrayList<>();
+    private final List<Band> occlusionBands = new ArrayList<>();
+    private final List<Band> historyBands = new ArrayList<>();
+    private final List<Band> upsampleBands = new ArrayList<>();
+    private final List<Band> blurHorizontalBands = new ArrayList<>();
+    private final List<Band> blurVerticalBands = new ArrayList<>();
+    private final List<Band> colorizeBands = new ArrayList<>();
+    private final List<Band> colorizeBlurredBands = new ArrayList<>();
+
     public SSAO(DepthBuffer depthBuffer) {
+        this(depthBuffer, 8, 64);
+    }
+
+    public SSAO(DepthBuffer depthBuffer, int directions, int steps) {
+        if (directions < 1 || steps < 1) {
+            throw new IllegalArgumentException("Invalid directions "
+                    + directions + " or steps " + steps + " !");
+        }
         this.depthBuffer = depthBuffer;
+        this.directions = directions;
+        this.steps = steps;
         width = depthBuffer.getWidth();
         height = depthBuffer.getHeight();
-        ssao = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        ssaoBlurred = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        og = (Graphics2D) ssao.getGraphics();
-        og.setBackground(new Color(255, 255, 255, 0));
-        initBlur();
+        tileColumns = depthBuffer.getDirtyColumns();
+        tileRows = depthBuffer.getDirtyRows();
+        fullOcclusion = new float[width * height];
+        blurredOcclusion = new float[width * height];
+        blur = new OcclusionBlur(width, height
+                , fullOcclusion, blurredOcclusion, depthBuffer);
+        colorizer = new OcclusionColorizer(width, height, fullOcclusion);
+        blurredColorizer = new OcclusionColorizer(
+                width, height, blurredOcclusion);
+        
+        radius = steps;
+        setHemisphereSamples(16);
+        Random random = new Random(0);
+        for (int i = 0; i < 16; i++) {
+            double a = 2 * Math.PI * random.nextDouble();
+            noiseX[i] = Math.cos(a);
+            noiseY[i] = Math.sin(a);
+        }
+
+        setDownsample(1);
+        createBands();
+    }
+
+    // depth values below this are background
+    private static final double BACKGROUND_DEPTH = -1e5;
+
+    // steps taken one pixel apart in hierarchical mode before the stride
+    // starts doubling
+    private static final int HI_Z_NEAR_STEPS = 8;
+
+    // sample tables, one row of tableSteps per direction. sampleCount[d]
+    // tells how many steps of direction d are actually used, and
+    // sampleLevel the DepthPyramid level each one reads.
+    private int tableSteps;
+    private int[] sampleCount;
+    private int[] offsetX;
+    private int[] offsetY;
+    private int[] sampleLevel;
+    // how many of the samples of each direction read level 0
+    private int[] nearSampleCount;
+    private double[] invDistance;
+    // how far from a pixel the samples of the HORIZON kernel can read, in
+    // full resolution pixels
+    private int horizonReach;
+
+    /**
+     * Precomputes the pixel offset and the inverse distance of every step
+     * of every direction, since they are the same for all pixels.
+     *
+     * @param scale size of one aoDepth pixel in full resolution pixels.
+     *     Distances are kept in full resolution pixels, so the march
+     *     covers the same radius with steps / scale samples.
+     */
+    private void initSampleTables(int scale) {
+        tableSteps = (steps + scale - 1) / scale;
+        sampleCount = new int[directions];
+        offsetX = new int[directions * tableSteps];
+        offsetY = new int[directions * tableSteps];
+        sampleLevel = new int[directions * tableSteps];
+        nearSampleCount = new int[directions];
+        invDistance = new double[directions * tableSteps];
+        int maxLevel = 0;
+        for (int d = 0; d < directions; d++) {
+            double a = 2 * Math.PI * d / directions;
+            double dx = Math.cos(a);
+            double dy = Math.sin(a);
+            // cos and sin of multiples of PI / 2 are not exactly 0, and a
+            // tiny negative component would floor to a whole pixel off
+            if (Math.abs(dx) < 1e-9) {
+                dx = 0;
+            }
+            if (Math.abs(dy) < 1e-9) {
+                dy = 0;
+            }
+            int count = 0;
+            int level = 0;
+            int t = 0;
+            while (t < tableSteps) {
+                // the ray direction is (dx, dy, 1), so its z component
+                // also adds to the distance
+                double distance = t * scale * Math.sqrt(dx * dx + dy * dy + 1);
+                if (distance >= 1) {
+                    int i = d * tableSteps + count;
+                    offsetX[i] = (int) Math.floor(dx * t);
+                    offsetY[i] = (int) Math.floor(dy * t);
+                    sampleLevel[i] = level;
+                    invDistance[i] = 1 / distance;
+                    maxLevel = Math.max(maxLevel, level);
+                    count++;
+                    if (level == 0) {
+                        nearSampleCount[d] = count;
+                    }
+                }
+                // after HI_Z_NEAR_STEPS strides of a level, the stride doubles
+                if (hierarchical && t >= HI_Z_NEAR_STEPS << level) {
+                    level++;
+                }
+                t += 1 << level;
+            }
+            sampleCount[d] = count;
+        }
+        horizonReach = steps + ((1 << maxLevel) - 1) * scale;
+    }
+
+    public int getDirections() {
+        return directions;
     }
 
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the full resolution occlusion computed by the last call
+     *     to process(), row by row
+     */
+    public float[] getOcclusion() {
+        return fullOcclusion;
+    }
+
+    public float getOcclusion(int x, int y) {
+        return fullOcclusion[y * width + x];
+    }
+
+    /**
+     * @return the occlusion as an ARGB image
+     */
     public BufferedImage getSSAO() {
-        return ssao;
+        BufferedImage image = colorizer.getImage();
+        run(colorizeBands);
+        return image;
     }
 
-    private final Vec3 cur = new Vec3();
-    private final Vec3 dir2 = new Vec3();
-    private final Vec3 distVec = new Vec3();
-    
-    // https://github.com/ssloy/tinyrenderer/blob/d7c806bc3d598fc54dd446b6c81b94f723728205/main.cpp
-    private double calculateMaxElevationAngle(DepthBuffer zbuffer, Vec3 p, Vec3 dir) {
-        double maxAngle = 0;
-        for (double t = 0; t < 64; t += 1) {
-            cur.set(p);
-            dir2.set(dir);
-            
-            dir2.scale(t);
-            cur.add(dir2);
-            if (cur.x >= width || cur.y >= height || cur.x < 0 || cur.y < 0) {
-                return maxAngle;
-            }
-            distVec.set(p);
-            distVec.sub(cur);
-            double distance = distVec.getLength();
-            if (distance < 1) {
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    /**
+     * HEMISPHERE needs a normal buffer, see setNormalBuffer().
+     */
+    public void setKernel(Kernel kernel) {
+        this.kernel = kernel;
+        resetHistory();
+    }
+
+    public NormalBuffer getNormalBuffer() {
+        return normalBuffer;
+    }
+
+    /**
+     * @param normalBuffer view space normals of the same size as the
+     *     depth buffer, used by the HEMISPHERE kernel
+     */
+    public void setNormalBuffer(NormalBuffer normalBuffer) {
+        if (normalBuffer != null && (normalBuffer.getWidth() != width
+                || normalBuffer.getHeight() != height)) {
+
+            throw new IllegalArgumentException("Invalid normal buffer size "
+                    + normalBuffer.getWidth() + "x"
+                    + normalBuffer.getHeight() + " !");
+        }
+        this.normalBuffer = normalBuffer;
+        resetHistory();
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * @param radius of the HEMISPHERE kernel in pixels, steps by default
+     *     so it reaches as far as the HORIZON march
+     */
+    public void setRadius(double radius) {
+        if (!(radius > 0)) {
+            throw new IllegalArgumentException(
+                    "Invalid radius " + radius + " !");
+        }
+        this.radius = radius;
+        resetHistory();
+    }
+
+    public int getHemisphereSamples() {
+        return hemisphereSamples;
+    }
+
+    /**
+     * Sets the number of samples per pixel of the HEMISPHERE kernel. They
+     * are spread in the unit hemisphere, more of them close to the
+     * center.
+     */
+    public void setHemisphereSamples(int hemisphereSamples) {
+        if (hemisphereSamples < 1) {
+            throw new IllegalArgumentException("Invalid hemisphere samples "
+                    + hemisphereSamples + " !");
+        }
+        this.hemisphereSamples = hemisphereSamples;
+        resetHistory();
+        kernelX = new double[hemisphereSamples];
+        kernelY = new double[hemisphereSamples];
+        kernelZ = new double[hemisphereSamples];
+        Random random = new Random(hemisphereSamples);
+        for (int i = 0; i < hemisphereSamples; i++) {
+            double x = random.nextDouble() * 2 - 1;
+            double y = random.nextDouble() * 2 - 1;
+            double z = random.nextDouble();
+            double length = Math.sqrt(x * x + y * y + z * z);
+            if (length < 1e-6) {
+                i--;
                 continue;
             }
-            double elevation = zbuffer.get((int) cur.x, (int) cur.y) 
-                    - zbuffer.get((int) p.x, (int) p.y);
-            
-            maxAngle = Math.max(maxAngle, Math.atan(elevation / distance));
+            double scale = (double) i / hemisphereSamples;
+            scale = 0.1 + 0.9 * scale * scale;
+            scale *= random.nextDouble() / length;
+            kernelX[i] = x * scale;
+            kernelY[i] = y * scale;
+            kernelZ[i] = z * scale;
+        }
+    }
+
+    public int getTemporalFrames() {
+        return temporalFrames;
+    }
+
+    /**
+     * Spreads the occlusion of every pixel over temporalFrames frames
+     * (1, 2, 4, 8 or 16), in an ordered dither pattern. 1 computes every
+     * pixel every frame, as without temporal mode. Anything else needs a
+     * transform, see setTransform().
+     */
+    public void setTemporalFrames(int temporalFrames) {
+        if (temporalFrames < 1 || temporalFrames > 16
+                || (temporalFrames & (temporalFrames - 1)) != 0) {
+
+            throw new IllegalArgumentException(
+                    "Invalid temporal frames " + temporalFrames + " !");
+        }
+        this.temporalFrames = temporalFrames;
+        resetHistory();
+    }
+
+    public double getHistoryWeight() {
+        return historyWeight;
+    }
+
+    /**
+     * @param historyWeight how much of the reprojected history is kept
+     *     when a pixel is computed again in temporal mode, in [0, 1)
+     */
+    public void setHistoryWeight(double historyWeight) {
+        if (!(historyWeight >= 0 && historyWeight < 1)) {
+            throw new IllegalArgumentException(
+                    "Invalid history weight " + historyWeight + " !");
+        }
+        this.historyWeight = historyWeight;
+    }
+
+    public VertexTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * @param transform the transform the depth buffer is drawn with, read
+     *     by process() in temporal mode to reproject the previous frame
+     */
+    public void setTransform(VertexTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Makes the next process() compute every pixel, for example after a
+     * cut to a different scene.
+     */
+    public void resetHistory() {
+        historyValid = false;
+        cacheValid = false;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isHierarchical() {
+        return hierarchical;
+    }
+
+    /**
+     * Makes the HORIZON kernel march a DepthPyramid with growing stride
+     * instead of taking every step on the depth buffer. Faster, with a
+     * little more occlusion at a distance since each coarse sample stands
+     * for the nearest of the pixels it covers.
+     */
+    public void setHierarchical(boolean hierarchical) {
+        this.hierarchical = hierarchical;
+        initSampleTables(downsample);
+        resetHistory();
+    }
+
+    /**
+     * Only computes again the pixels within reach (steps, or the radius
+     * of the HEMISPHERE kernel) of the tiles marked dirty in the depth
+     * buffer since the last process(), and clears them. Pays off when
+     * the depth buffer is mostly left as it is between frames and only
+     * changed parts are cleared (see DepthBuffer.clear(x0, y0, x1, y1))
+     * and drawn again. Ignored in temporal mode.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        resetHistory();
+    }
+
+    /**
+     * @return how many tiles the last process() computed the occlusion
+     *     of, out of getDirtyColumns() * getDirtyRows() of the depth
+     *     buffer
+     */
+    public int getProcessedTileCount() {
+        return processedTileCount;
+    }
+
+    /**
+     * @return how many pixels of the (downsampled) depth buffer the last
+     *     process() computed the occlusion of
+     */
+    public long getComputedPixelCount() {
+        long count = 0;
+        for (int pixels : computedPixels) {
+            count += pixels;
+        }
+        return count;
+    }
+
+    /**
+     * @return how many pixels of the (downsampled) depth buffer the last
+     *     process() didn't compute, because they are background, outside
+     *     the dirty tiles or taken from the history
+     */
+    public long getSkippedPixelCount() {
+        return (long) aoWidth * aoHeight - getComputedPixelCount();
+    }
+
+    public int getDownsample() {
+        return downsample;
+    }
+
+    /**
+     * Sets the factor (1, 2 or 4) the depth buffer is downsampled by
+     * before the occlusion is computed. 2 cuts the cost about 4x and
+     * 4 about 16x, at some loss of detail.
+     */
+    public void setDownsample(int downsample) {
+        if (downsample != 1 && downsample != 2 && downsample != 4) {
+            throw new IllegalArgumentException(
+                    "Invalid downsample factor " + downsample + " !");
+        }
+        this.downsample = downsample;
+        if (downsample == 1) {
+            aoDepth = depthBuffer;
+            occlusion = fullOcclusion;
+        }
+        else {
+            aoDepth = new DepthBuffer((width + downsample - 1) / downsample
+                    , (height + downsample - 1) / downsample
+                    , depthBuffer.getPrecision(), depthBuffer.getLayout());
+            occlusion = new float[aoDepth.getWidth() * aoDepth.getHeight()];
+        }
+        aoWidth = aoDepth.getWidth();
+        aoHeight = aoDepth.getHeight();
+        pyramid = null;
+        pyramidNearest = null;
+        pyramidWidth = null;
+        computedPixels = new int[aoHeight];
+        history = null;
+        historyDepth = null;
+        resetHistory();
+        initSampleTables(downsample);
+        createBands();
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Sets the threads process() uses, workerPool stays owned by the
+     * caller. With a single worker the whole image is processed on the
+     * calling thread, otherwise it is split into row bands. The result is
+     * the same in both cases, except for the float rounding of the blur
+     * running sums, which restart at each band.
+     */
+    public void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+        createBands();
+    }
+
+    private void createBands() {
+        createBands(downsampleBands, this::downsampleRows, aoHeight);
+        createBands(occlusionBands, this::occlusionRows, aoHeight);
+        createBands(historyBands, this::historyRows, aoHeight);
+        createBands(upsampleBands, this::upsampleRows, height);
+        createBands(blurHorizontalBands, blur::horizontalRows, height);
+        createBands(blurVerticalBands, blur::verticalRows, height);
+        createBands(colorizeBands, colorizer::colorizeRows, height);
+        createBands(colorizeBlurredBands, blurredColorizer::colorizeRows, height);
+    }
+
+    private void createBands(List<Band> bands, RowTask task, int rows) {
+        bands.clear();
+        int bandCount = workerPool.getTaskCount(rows);
+        for (int i = 0; i < bandCount; i++) {
+            int y0 = rows * i / bandCount;
+            int y1 = rows * (i + 1) / bandCount;
+            bands.add(new Band(task, y0, y1));
         }
-        return maxAngle;
     }
 
     public void process() {
-        og.clearRect(0, 0, ssao.getWidth(), ssao.getHeight());
-        
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                
-                if (depthBuffer.get(x, y) < -1e5) {
+        if (kernel == Kernel.HEMISPHERE && normalBuffer == null) {
+            throw new IllegalStateException("No normal buffer set !");
+        }
+        if (temporalFrames > 1 && transform == null) {
+            throw new IllegalStateException("No transform set !");
+        }
+        boolean partial = incremental && temporalFrames == 1;
+        if (partial && cacheValid) {
+            if (!updateTiles()) {
+                // nothing changed
+                processedTileCount = 0;
+                Arrays.fill(computedPixels, 0);
+                return;
+            }
+        }
+        else {
+            downsampleTiles = null;
+            occlusionTiles = null;
+            upsampleTiles = null;
+            processedTileCount = tileColumns * tileRows;
+        }
+        if (downsample > 1) {
+            run(downsampleBands);
+        }
+        if (temporalFrames > 1) {
+            updateReprojection();
+            // a different rotation of the hemisphere kernel each time a
+            // pixel is computed again, so the history averages them
+            noiseOffset = 5 * frame & 15;
+        }
+        else {
+            noiseOffset = 0;
+            historyValid = false;
+        }
+        if (hierarchical && kernel == Kernel.HORIZON) {
+            if (pyramid == null) {
+                createPyramid();
+            }
+            pyramid.build();
+        }
+        run(occlusionBands);
+        if (temporalFrames > 1) {
+            run(historyBands);
+            System.arraycopy(view, 0, previousView, 0, 12);
+            historyValid = true;
+            frame++;
+        }
+        if (downsample > 1) {
+            run(upsampleBands);
+        }
+        if (partial) {
+            depthBuffer.clearDirty();
+            cacheValid = true;
+        }
+    }
+
+    private void createPyramid() {
+        pyramid = new DepthPyramid(aoDepth);
+        pyramidNearest = new double[pyramid.getLevelCount()][];
+        pyramidWidth = new int[pyramid.getLevelCount()];
+        for (int level = 1; level < pyramid.getLevelCount(); level++) {
+            pyramidNearest[level] = pyramid.getNearestData(level);
+            pyramidWidth[level] = pyramid.getWidth(level);
+        }
+    }
+
+    /**
+     * Selects the tiles to process from the dirty ones: these need to be
+     * downsampled again, the occlusion is computed within reach of them,
+     * and upsampled one tile further since the upsampling reads the
+     * neighbouring occlusion samples.
+     *
+     * @return false if no tile is dirty
+     */
+    private boolean updateTiles() {
+        int count = tileColumns * tileRows;
+        if (occlusionTiles == null) {
+            downsampleTiles = new boolean[count];
+            occlusionTiles = new boolean[count];
+            upsampleTiles = new boolean[count];
+        }
+        boolean[] dirty = depthBuffer.getDirtyTiles();
+        System.arraycopy(dirty, 0, downsampleTiles, 0, count);
+        Arrays.fill(occlusionTiles, false);
+        Arrays.fill(upsampleTiles, false);
+        double reach = kernel == Kernel.HEMISPHERE ? radius : horizonReach;
+        int tileReach = (int) Math.ceil(reach / DepthBuffer.DIRTY_TILE_SIZE);
+        boolean any = false;
+        for (int ty = 0; ty < tileRows; ty++) {
+            for (int tx = 0; tx < tileColumns; tx++) {
+                if (!dirty[ty * tileColumns + tx]) {
+                    continue;
+                }
+                any = true;
+                markTiles(occlusionTiles, tx, ty, tileReach);
+                markTiles(upsampleTiles, tx, ty, tileReach + 1);
+            }
+        }
+        processedTileCount = 0;
+        for (boolean tile : occlusionTiles) {
+            if (tile) {
+                processedTileCount++;
+            }
+        }
+        return any;
+    }
+
+    private void markTiles(boolean[] tiles, int tx, int ty, int reach) {
+        int tx0 = Math.max(tx - reach, 0);
+        int ty0 = Math.max(ty - reach, 0);
+        int tx1 = Math.min(tx + reach, tileColumns - 1);
+        int ty1 = Math.min(ty + reach, tileRows - 1);
+        for (int y = ty0; y <= ty1; y++) {
+            for (int x = tx0; x <= tx1; x++) {
+                tiles[y * tileColumns + x] = true;
+            }
+        }
+    }
+
+    private void run(List<Band> bands) {
+        workerPool.invokeAll(bands);
+    }
+
+    /**
+     * Reads the current view matrix of the transform and, if there is a
+     * history, combines it with the previous one: reprojection = previous
+     * * inverse(view). The rotation part is orthonormal, so its inverse
+     * is its transpose.
+     */
+    private void updateReprojection() {
+        transform.getViewMatrix(view);
+        focalLength = transform.getFocalLength();
+        halfWidth = transform.getHalfWidth();
+        halfHeight = transform.getHalfHeight();
+        if (history == null) {
+            history = new float[aoWidth * aoHeight];
+            historyDepth = new double[aoWidth * aoHeight];
+            historyValid = false;
+        }
+        if (!historyValid) {
+            return;
+        }
+        for (int row = 0; row < 3; row++) {
+            double p0 = previousView[row * 4];
+            double p1 = previousView[row * 4 + 1];
+            double p2 = previousView[row * 4 + 2];
+            double translation = previousView[row * 4 + 3];
+            for (int column = 0; column < 3; column++) {
+                double r = p0 * view[column * 4] + p1 * view[column * 4 + 1]
+                        + p2 * view[column * 4 + 2];
+
+                reprojection[row * 4 + column] = r;
+                translation -= r * view[column * 4 + 3];
+            }
+            reprojection[row * 4 + 3] = translation;
+        }
+    }
+
+    private interface RowTask {
+
+        void run(int y0, int y1);
+
+    }
+
+    /**
+     * Range of rows [y0, y1) processed by one task. Bands only read the
+     * shared state and write their own rows of the output, so they can
+     * run concurrently. Nothing is allocated per pixel.
+     */
+    private static class Band implements Callable<Void> {
+
+        private final RowTask task;
+        private final int y0;
+        private final int y1;
+
+        public Band(RowTask task, int y0, int y1) {
+            this.task = task;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        public Void call() {
+            task.run(y0, y1);
+            return null;
+        }
+
+    }
+
+    /**
+     * Each aoDepth pixel keeps the nearest (largest) depth of its
+     * downsample x downsample block.
+     */
+    private void downsampleRows(int y0, int y1) {
+        boolean[] tiles = downsampleTiles;
+        int tilePixels = DepthBuffer.DIRTY_TILE_SIZE / downsample;
+        for (int y = y0; y < y1; y++) {
+            int sy0 = y * downsample;
+            int sy1 = Math.min(sy0 + downsample, height);
+            int tileRow = y / tilePixels * tileColumns;
+            for (int x = 0; x < aoWidth; x++) {
+                if (tiles != null && !tiles[tileRow + x / tilePixels]) {
                     continue;
                 }
-                
-                double total = 0;
-                for (double a = 0; a < Math.PI * 2 - 1e-4; a += Math.PI / 4) {
-                    total += Math.PI / 2 - calculateMaxElevationAngle(depthBuffer
-                        , new Vec3(x, y, 1), new Vec3(Math.cos(a), Math.sin(a), 1));
+                int sx0 = x * downsample;
+                int sx1 = Math.min(sx0 + downsample, width);
+                double z = Double.NEGATIVE_INFINITY;
+                for (int sy = sy0; sy < sy1; sy++) {
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        z = Math.max(z, depthBuffer.getUnchecked(sx, sy));
+                    }
+                }
+                aoDepth.setUnchecked(aoDepth.index(x, y), z);
+            }
+        }
+    }
+
+    // https://github.com/ssloy/tinyrenderer/blob/d7c806bc3d598fc54dd446b6c81b94f723728205/main.cpp
+    // the maximum elevation angle is found by comparing tangents,
+    // atan is only called once per ray.
+    private double calculateMaxElevationAngle(int px, int py, double pz, int d) {
+        double maxTangent = 0;
+        int first = d * tableSteps;
+        int last = first + sampleCount[d];
+        for (int i = first; i < last; i++) {
+            int cx = px + offsetX[i];
+            int cy = py + offsetY[i];
+            if (cx >= aoWidth || cy >= aoHeight || cx < 0 || cy < 0) {
+                break;
+            }
+            double elevation = aoDepth.getUnchecked(cx, cy) - pz;
+            double tangent = elevation * invDistance[i];
+            if (tangent > maxTangent) {
+                maxTangent = tangent;
+            }
+        }
+        return Math.atan(maxTangent);
+    }
+
+    private double calculateMaxElevationAngleHiZ(int px, int py, double pz
+            , int d) {
+
+        double maxTangent = 0;
+        int first = d * tableSteps;
+        int near = first + nearSampleCount[d];
+        int last = first + sampleCount[d];
+        int i = first;
+        for (; i < near; i++) {
+            int cx = px + offsetX[i];
+            int cy = py + offsetY[i];
+            if (cx >= aoWidth || cy >= aoHeight || cx < 0 || cy < 0) {
+                return Math.atan(maxTangent);
+            }
+            double elevation = aoDepth.getUnchecked(cx, cy) - pz;
+            double tangent = elevation * invDistance[i];
+            if (tangent > maxTangent) {
+                maxTangent = tangent;
+            }
+        }
+        for (; i < last; i++) {
+            int cx = px + offsetX[i];
+            int cy = py + offsetY[i];
+            if (cx >= aoWidth || cy >= aoHeight || cx < 0 || cy < 0) {
+                break;
+            }
+            int level = sampleLevel[i];
+            double elevation = pyramidNearest[level][(cy >> level)
+                    * pyramidWidth[level] + (cx >> level)] - pz;
+
+            double tangent = elevation * invDistance[i];
+            if (tangent > maxTangent) {
+                maxTangent = tangent;
+            }
+        }
+        return Math.atan(maxTangent);
+    }
+
+    // 4x4 ordered dither, tells in which frame of temporalFrames a pixel
+    // is computed
+    private static final int[] DITHER = {
+        0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5
+    };
+
+    private void occlusionRows(int y0, int y1) {
+        boolean temporal = temporalFrames > 1 && historyValid;
+        int phase = frame & (temporalFrames - 1);
+        boolean[] tiles = occlusionTiles;
+        int tilePixels = DepthBuffer.DIRTY_TILE_SIZE / downsample;
+        for (int y = y0; y < y1; y++) {
+            int index = y * aoWidth;
+            int tileRow = y / tilePixels * tileColumns;
+            int computed = 0;
+            for (int x = 0; x < aoWidth; x++, index++) {
+                if (tiles != null && !tiles[tileRow + x / tilePixels]) {
+                    continue;
                 }
-                total /= (Math.PI / 2) * 8;
-                
-                // test 1
-                //total = Math.pow(total, 0.75);
-                //total = 1.25 - Math.pow(1 / (total + 1), 2);
-                //total = total < 0 ? 0 : total > 1 ? 1 : total;
-                
-                // test 2
-                if (total > 0.65) {
-                    total = 1;
+                double z = aoDepth.getUnchecked(x, y);
+                if (z < BACKGROUND_DEPTH) {
+                    occlusion[index] = 1;
+                    continue;
                 }
-                else {
-                    total = total * 1.3;
-                    total = total < 0 ? 0 : total > 1 ? 1 : total;
+                if (temporal) {
+                    double previous = reproject(x, y, z);
+                    if (previous >= 0) {
+                        int dither = DITHER[(y & 3) * 4 + (x & 3)];
+                        if ((dither & (temporalFrames - 1)) != phase) {
+                            occlusion[index] = (float) previous;
+                        }
+                        else {
+                            occlusion[index] = (float) (previous
+                                    * historyWeight + computeOcclusion(x, y, z)
+                                    * (1 - historyWeight));
+                            computed++;
+                        }
+                        continue;
+                    }
                 }
+                occlusion[index] = (float) computeOcclusion(x, y, z);
+                computed++;
+            }
+            computedPixels[y] = computed;
+        }
+    }
+
+    private double computeOcclusion(int x, int y, double z) {
+        if (kernel == Kernel.HEMISPHERE) {
+            return hemisphereOcclusion(x, y, z);
+        }
+        return horizonOcclusion(x, y, z);
+    }
+
+    // history depth must be within this many full resolution pixels of
+    // the reprojected depth
+    private static final double HISTORY_DEPTH_TOLERANCE = 2;
+
+    /**
+     * @return the history occlusion of the aoDepth pixel (x, y) at depth z
+     *     in the previous frame, or -1 if it wasn't visible there
+     */
+    private double reproject(int x, int y, double z) {
+        double[] r = reprojection;
+        double w = -z / focalLength;
+        double vx = ((x + 0.5) * downsample - halfWidth) * w;
+        double vy = (halfHeight - (y + 0.5) * downsample) * w;
+        double px = r[0] * vx + r[1] * vy + r[2] * z + r[3];
+        double py = r[4] * vx + r[5] * vy + r[6] * z + r[7];
+        double pz = r[8] * vx + r[9] * vy + r[10] * z + r[11];
+        if (pz > -1) {
+            return -1;
+        }
+        double pw = -pz / focalLength;
+        double hx = Math.floor((halfWidth + px / pw) / downsample);
+        double hy = Math.floor((halfHeight - py / pw) / downsample);
+        if (hx < 0 || hy < 0 || hx >= aoWidth || hy >= aoHeight) {
+            return -1;
+        }
+        int index = (int) hy * aoWidth + (int) hx;
+        if (Math.abs(historyDepth[index] - pz)
+                > HISTORY_DEPTH_TOLERANCE * downsample) {
+
+            return -1;
+        }
+        return history[index];
+    }
+
+    private void historyRows(int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int index = y * aoWidth;
+            for (int x = 0; x < aoWidth; x++, index++) {
+                history[index] = occlusion[index];
+                historyDepth[index] = aoDepth.getUnchecked(x, y);
+            }
+        }
+    }
+
+    private double horizonOcclusion(int x, int y, double z) {
+        double total = 0;
+        for (int d = 0; d < directions; d++) {
+            if (hierarchical) {
+                total += Math.PI / 2
+                        - calculateMaxElevationAngleHiZ(x, y, z, d);
+            }
+            else {
+                total += Math.PI / 2 - calculateMaxElevationAngle(x, y, z, d);
+            }
+        }
+        total /= (Math.PI / 2) * directions;
+
+        // test 1
+        //total = Math.pow(total, 0.75);
+        //total = 1.25 - Math.pow(1 / (total + 1), 2);
+        //total = total < 0 ? 0 : total > 1 ? 1 : total;
+
+        // test 2
+        if (total > 0.65) {
+            total = 1;
+        }
+        else {
+            total = total * 1.3;
+            total = total < 0 ? 0 : total > 1 ? 1 : total;
+        }
+        return total;
+    }
+
+    // samples must be this much behind the depth buffer to be occluded,
+    // in radius units. Keeps the flat triangles from occluding themselves
+    // where the interpolated normal leans away from them.
+    private static final double HEMISPHERE_BIAS = 0.1;
+
+    /**
+     * Occlusion with the hemisphere kernel. Positions are in full
+     * resolution pixels, x to the right, y down and z the depth (towards
+     * the camera), so the view space normal is flipped in y.
+     */
+    private double hemisphereOcclusion(int x, int y, double pz) {
+        double px = (x + 0.5) * downsample;
+        double py = (y + 0.5) * downsample;
+
+        int fx = Math.min(x * downsample + downsample / 2, width - 1);
+        int fy = Math.min(y * downsample + downsample / 2, height - 1);
+        int normalIndex = fy * width + fx;
+        double nx = normalBuffer.getX()[normalIndex];
+        double ny = -normalBuffer.getY()[normalIndex];
+        double nz = normalBuffer.getZ()[normalIndex];
+        if (nx == 0 && ny == 0 && nz == 0) {
+            // no normal, assume it faces the camera
+            nz = 1;
+        }
+
+        // tangent from the random vector, Gram-Schmidt
+        int noise = ((y & 3) * 4 + (x & 3) + noiseOffset) & 15;
+        double rx = noiseX[noise];
+        double ry = noiseY[noise];
+        double dot = rx * nx + ry * ny;
+        double tx = rx - nx * dot;
+        double ty = ry - ny * dot;
+        double tz = -nz * dot;
+        double length = Math.sqrt(tx * tx + ty * ty + tz * tz);
+        if (length < 1e-6) {
+            // random vector along the normal
+            tx = nz;
+            ty = 0;
+            tz = -nx;
+            length = Math.sqrt(tx * tx + tz * tz);
+        }
+        tx /= length;
+        ty /= length;
+        tz /= length;
+        double bx = ny * tz - nz * ty;
+        double by = nz * tx - nx * tz;
+        double bz = nx * ty - ny * tx;
 
-                int color = new Color(
-                    (int) (total * 255), 0, (int) (64 - total * 64)
-                        , (int) (255 - total * 255)).getRGB();
-                
-                ssao.setRGB(x, y, color);
+        int samples = hemisphereSamples;
+        double bias = HEMISPHERE_BIAS * radius;
+        double occluded = 0;
+        for (int i = 0; i < samples; i++) {
+            double kx = kernelX[i] * radius;
+            double ky = kernelY[i] * radius;
+            double kz = kernelZ[i] * radius;
+            double sx = px + tx * kx + bx * ky + nx * kz;
+            double sy = py + ty * kx + by * ky + ny * kz;
+            double sz = pz + tz * kx + bz * ky + nz * kz;
+            int cx = (int) Math.floor(sx / downsample);
+            int cy = (int) Math.floor(sy / downsample);
+            if (cx < 0 || cy < 0 || cx >= aoWidth || cy >= aoHeight) {
+                continue;
+            }
+            double sceneZ = aoDepth.getUnchecked(cx, cy);
+            if (sceneZ < sz + bias) {
+                continue;
+            }
+            // occluders much closer than the sample count less
+            double range = radius / Math.abs(pz - sceneZ);
+            if (range >= 1) {
+                occluded += 1;
+            }
+            else {
+                occluded += range * range * (3 - 2 * range);
             }
         }
+        return 1 - occluded / samples;
     }
 
-    private ConvolveOp blurOp;
-    
-    private void initBlur() {
-        int radius = 3;
-        int size = radius * 2 + 1;
-        float weight = 1.0f / (size * size);
-        float[] data = new float[size * size];
-        for (int i = 0; i < data.length; i++) {
-            data[i] = weight;
+    // keeps the bilateral weights finite when depths match exactly
+    private static final double DEPTH_EPSILON = 0.1;
+
+    /**
+     * Fills the full resolution occlusion when downsampled. Each
+     * pixel blends the 4 nearest occlusion samples with bilinear weights
+     * scaled down by their depth difference to the pixel, so samples from
+     * the other side of a depth edge barely contribute.
+     */
+    private void upsampleRows(int y0, int y1) {
+        boolean[] tiles = upsampleTiles;
+        for (int y = y0; y < y1; y++) {
+            int index = y * width;
+            int tileRow = y / DepthBuffer.DIRTY_TILE_SIZE * tileColumns;
+            for (int x = 0; x < width; x++, index++) {
+                if (tiles != null
+                        && !tiles[tileRow + x / DepthBuffer.DIRTY_TILE_SIZE]) {
+
+                    continue;
+                }
+                double z = depthBuffer.getUnchecked(x, y);
+                if (z < BACKGROUND_DEPTH) {
+                    fullOcclusion[index] = 1;
+                    continue;
+                }
+
+                double fx = (x + 0.5) / downsample - 0.5;
+                double fy = (y + 0.5) / downsample - 0.5;
+                int ax = (int) Math.floor(fx);
+                int ay = (int) Math.floor(fy);
+                double tx = fx - ax;
+                double ty = fy - ay;
+
+                double sum = 0;
+                double weightSum = 0;
+                for (int j = 0; j < 2; j++) {
+                    int sy = Math.min(Math.max(ay + j, 0), aoHeight - 1);
+                    double wy = j == 0 ? 1 - ty : ty;
+                    for (int i = 0; i < 2; i++) {
+                        int sx = Math.min(Math.max(ax + i, 0), aoWidth - 1);
+                        double wx = i == 0 ? 1 - tx : tx;
+                        int si = sy * aoWidth + sx;
+                        double sz = aoDepth.getUnchecked(sx, sy);
+                        if (sz < BACKGROUND_DEPTH) {
+                            continue;
+                        }
+                        double w = wx * wy / (DEPTH_EPSILON + Math.abs(sz - z));
+                        sum += w * occlusion[si];
+                        weightSum += w;
+                    }
+                }
+
+                double total = weightSum > 0 ? sum / weightSum : 1;
+                fullOcclusion[index] = (float) total;
+            }
         }
+    }
 
-        Kernel kernel = new Kernel(size, size, data);
-        blurOp = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null);
+    public OcclusionBlur getBlur() {
+        return blur;
     }
-    
+
+    /**
+     * Blurs the occlusion computed by the last call to process().
+     */
+    public float[] getBlurredOcclusion() {
+        run(blurHorizontalBands);
+        run(blurVerticalBands);
+        return blurredOcclusion;
+    }
+
+    /**
+     * @return the blurred occlusion as an ARGB image
+     */
     public BufferedImage getBlurred() {
-        blurOp.filter(ssao, ssaoBlurred);        
-        return ssaoBlurred;
+        getBlurredOcclusion();
+        BufferedImage image = blurredColorizer.getImage();
+        run(colorizeBlurredBands);
+        return image;
     }
-    
+
 }
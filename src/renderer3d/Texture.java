@@ -0,0 +1,292 @@
+package renderer3d;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Texture class.
+ *
+ * Decoded image kept as packed 0xRRGGBB texels, row by row, so it can be
+ * sampled with plain array indexing. Texture coordinates repeat: for
+ * power of two sizes the texel coordinates are wrapped with widthMask and
+ * heightMask, otherwise with a modulo.
+ *
+ * The mip chain is built when the texture is created. Each level is the
+ * previous one halved (a dimension of 1 stays 1) with a 2x2 box filter,
+ * down to 1x1. Level 0 is the image itself.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class Texture {
+
+    public static enum Filter { NEAREST, BILINEAR, TRILINEAR }
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int widthMask;
+    private final int heightMask;
+    private final boolean powerOfTwo;
+    private final int[] texels;
+
+    private final int[][] levels;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+
+    public Texture(String name, BufferedImage image) {
+        this.name = name;
+        width = image.getWidth();
+        height = image.getHeight();
+        texels = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] &= 0xffffff;
+        }
+        widthMask = width - 1;
+        heightMask = height - 1;
+        powerOfTwo = (width & widthMask) == 0 && (height & heightMask) == 0;
+
+        int levelCount = 1;
+        for (int w = width, h = height; w > 1 || h > 1; levelCount++) {
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+        levels = new int[levelCount][];
+        levelWidths = new int[levelCount];
+        levelHeights = new int[levelCount];
+        levels[0] = texels;
+        levelWidths[0] = width;
+        levelHeights[0] = height;
+        for (int level = 1; level < levelCount; level++) {
+            createLevel(level);
+        }
+    }
+
+    private void createLevel(int level) {
+        int[] src = levels[level - 1];
+        int srcWidth = levelWidths[level - 1];
+        int srcHeight = levelHeights[level - 1];
+        int dstWidth = Math.max(1, srcWidth / 2);
+        int dstHeight = Math.max(1, srcHeight / 2);
+        int[] dst = new int[dstWidth * dstHeight];
+        for (int y = 0; y < dstHeight; y++) {
+            int y0 = Math.min(2 * y, srcHeight - 1);
+            int y1 = Math.min(2 * y + 1, srcHeight - 1);
+            for (int x = 0; x < dstWidth; x++) {
+                int x0 = Math.min(2 * x, srcWidth - 1);
+                int x1 = Math.min(2 * x + 1, srcWidth - 1);
+                dst[y * dstWidth + x] = average(src[y0 * srcWidth + x0]
+                        , src[y0 * srcWidth + x1], src[y1 * srcWidth + x0]
+                        , src[y1 * srcWidth + x1]);
+            }
+        }
+        levels[level] = dst;
+        levelWidths[level] = dstWidth;
+        levelHeights[level] = dstHeight;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int r = ((a >> 16 & 255) + (b >> 16 & 255)
+                + (c >> 16 & 255) + (d >> 16 & 255) + 2) >> 2;
+        int g = ((a >> 8 & 255) + (b >> 8 & 255)
+                + (c >> 8 & 255) + (d >> 8 & 255) + 2) >> 2;
+        int bl = ((a & 255) + (b & 255) + (c & 255) + (d & 255) + 2) >> 2;
+        return (r << 16) | (g << 8) | bl;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidthMask() {
+        return widthMask;
+    }
+
+    public int getHeightMask() {
+        return heightMask;
+    }
+
+    /**
+     * @return true if width and height are powers of two, in which case
+     *     the masks can be used to wrap texel coordinates
+     */
+    public boolean isPowerOfTwo() {
+        return powerOfTwo;
+    }
+
+    public int[] getTexels() {
+        return texels;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int[] getLevelTexels(int level) {
+        return levels[level];
+    }
+
+    public int getLevelWidth(int level) {
+        return levelWidths[level];
+    }
+
+    public int getLevelHeight(int level) {
+        return levelHeights[level];
+    }
+
+    /**
+     * @return the texel at (x, y), wrapped around the texture
+     */
+    public int getTexel(int x, int y) {
+        if (powerOfTwo) {
+            return texels[(y & heightMask) * width + (x & widthMask)];
+        }
+        return texels[Math.floorMod(y, height) * width
+                + Math.floorMod(x, width)];
+    }
+
+    /**
+     * Nearest texel at the texture coordinates (s, t), t pointing up.
+     */
+    public int sample(double s, double t) {
+        int x = (int) Math.floor(s * width);
+        int y = (int) Math.floor((1 - t) * height);
+        return getTexel(x, y);
+    }
+
+    /**
+     * Level of detail for a pixel footprint given by the derivatives of
+     * the texture coordinates along the screen x and y axes: log2 of the
+     * longer side measured in level 0 texels, clamped to the mip chain.
+     */
+    public double computeLod(double dsdx, double dtdx
+            , double dsdy, double dtdy) {
+
+        double ux = dsdx * width;
+        double vx = dtdx * height;
+        double uy = dsdy * width;
+        double vy = dtdy * height;
+        double rho2 = Math.max(ux * ux + vx * vx, uy * uy + vy * vy);
+        if (!(rho2 > 1)) {
+            return 0;
+        }
+        // log2(sqrt(rho2))
+        double lod = 0.5 * Math.log(rho2) / Math.log(2);
+        return Math.min(lod, levels.length - 1);
+    }
+
+    /**
+     * @return the level used by NEAREST and BILINEAR for lod
+     */
+    public int getNearestLevel(double lod) {
+        return Math.min((int) (lod + 0.5), levels.length - 1);
+    }
+
+    public int sampleNearest(int level, double s, double t) {
+        int[] data = levels[level];
+        int w = levelWidths[level];
+        int h = levelHeights[level];
+        int x = wrap((int) Math.floor(s * w), w);
+        int y = wrap((int) Math.floor((1 - t) * h), h);
+        return data[y * w + x];
+    }
+
+    /**
+     * Blends the 4 texels around (s, t) in level, with the texel centers
+     * at half integer coordinates.
+     */
+    public int sampleBilinear(int level, double s, double t) {
+        int[] data = levels[level];
+        int w = levelWidths[level];
+        int h = levelHeights[level];
+        // 8 bit fixed point texel coordinates
+        int u = (int) Math.floor((s * w - 0.5) * 256);
+        int v = (int) Math.floor(((1 - t) * h - 0.5) * 256);
+        int fx = u & 255;
+        int fy = v & 255;
+        int x0 = wrap(u >> 8, w);
+        int y0 = wrap(v >> 8, h);
+        int x1 = x0 + 1 == w ? 0 : x0 + 1;
+        int y1 = y0 + 1 == h ? 0 : y0 + 1;
+        return blend(data[y0 * w + x0], data[y0 * w + x1]
+                , data[y1 * w + x0], data[y1 * w + x1], fx, fy);
+    }
+
+    /**
+     * Bilinear samples from the two levels around lod, blended by the
+     * fractional part of lod.
+     */
+    public int sampleTrilinear(double lod, double s, double t) {
+        int level = (int) lod;
+        int c0 = sampleBilinear(level, s, t);
+        if (level + 1 >= levels.length) {
+            return c0;
+        }
+        int c1 = sampleBilinear(level + 1, s, t);
+        int f = (int) ((lod - level) * 256);
+        return blend(c0, c1, c0, c1, f, 0);
+    }
+
+    public int sample(Filter filter, double lod, double s, double t) {
+        switch (filter) {
+            case BILINEAR:
+                return sampleBilinear(getNearestLevel(lod), s, t);
+            case TRILINEAR:
+                return sampleTrilinear(lod, s, t);
+            default:
+                return sampleNearest(getNearestLevel(lod), s, t);
+        }
+    }
+
+    private static int wrap(int x, int size) {
+        // sizes of the levels are powers of two when the texture is
+        if ((size & (size - 1)) == 0) {
+            return x & (size - 1);
+        }
+        return Math.floorMod(x, size);
+    }
+
+    /**
+     * Bilinear blend of c00, c10 (right), c01 (below) and c11 with
+     * weights fx and fy in 1/256 units.
+     */
+    private static int blend(int c00, int c10, int c01, int c11
+            , int fx, int fy) {
+
+        int w00 = (256 - fx) * (256 - fy);
+        int w10 = fx * (256 - fy);
+        int w01 = (256 - fx) * fy;
+        int w11 = fx * fy;
+        int r = ((c00 >> 16 & 255) * w00 + (c10 >> 16 & 255) * w10
+                + (c01 >> 16 & 255) * w01 + (c11 >> 16 & 255) * w11) >> 16;
+        int g = ((c00 >> 8 & 255) * w00 + (c10 >> 8 & 255) * w10
+                + (c01 >> 8 & 255) * w01 + (c11 >> 8 & 255) * w11) >> 16;
+        int b = ((c00 & 255) * w00 + (c10 & 255) * w10
+                + (c01 & 255) * w01 + (c11 & 255) * w11) >> 16;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * @return size of the texel arrays of all the levels in bytes
+     */
+    public long getByteSize() {
+        long size = 0;
+        for (int[] level : levels) {
+            size += 4L * level.length;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Texture{" + "name=" + name + ", width=" + width
+                + ", height=" + height + ", levels=" + levels.length + '}';
+    }
+
+}
@@ -0,0 +1,189 @@
+package renderer3d;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.imageio.ImageIO;
+
+/**
+ * TextureCache class.
+ *
+ * Decoded textures keyed by resource path, shared by every material and
+ * mesh load in the process (see getShared()). When the texels of all the
+ * cached textures take more than the byte budget, the least recently used
+ * ones are dropped. A dropped texture stays valid for the materials that
+ * already use it, it's just decoded again by the next get().
+ *
+ * The images are decoded outside the lock, so threads loading different
+ * textures don't wait for each other. A get() of a texture another
+ * thread is decoding waits for that decode instead of starting its own.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class TextureCache {
+
+    private static final TextureCache SHARED = new TextureCache(64L << 20);
+
+    private final Map<String, Texture> textures
+            = new LinkedHashMap<>(16, 0.75f, true);
+
+    // textures being decoded, not in textures yet
+    private final Map<String, FutureTask<Texture>> decodes = new HashMap<>();
+
+    private long byteBudget;
+    private long byteSize;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public TextureCache(long byteBudget) {
+        setByteBudget(byteBudget);
+    }
+
+    /**
+     * @return the cache used by MaterialLoader, 64 MB by default
+     */
+    public static TextureCache getShared() {
+        return SHARED;
+    }
+
+    public synchronized long getByteBudget() {
+        return byteBudget;
+    }
+
+    public synchronized void setByteBudget(long byteBudget) {
+        if (byteBudget < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid byte budget " + byteBudget + " !");
+        }
+        this.byteBudget = byteBudget;
+        evict(null);
+    }
+
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    public synchronized int getSize() {
+        return textures.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the texture of the image resource textureRes, decoding it
+     *     if it is not in the cache
+     */
+    public Texture get(String textureRes) throws IOException {
+        FutureTask<Texture> decode;
+        boolean decoder = false;
+        synchronized (this) {
+            Texture texture = textures.get(textureRes);
+            if (texture != null) {
+                hitCount++;
+                return texture;
+            }
+            decode = decodes.get(textureRes);
+            if (decode == null) {
+                missCount++;
+                decode = new FutureTask<>(() -> decode(textureRes));
+                decodes.put(textureRes, decode);
+                decoder = true;
+            }
+        }
+        if (decoder) {
+            decode.run();
+        }
+        try {
+            Texture texture = decode.get();
+            if (decoder) {
+                add(textureRes, texture);
+            }
+            return texture;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted loading texture '" + textureRes + "' !");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            if (decoder) {
+                synchronized (this) {
+                    decodes.remove(textureRes);
+                }
+            }
+        }
+    }
+
+    private static Texture decode(String textureRes) throws IOException {
+        BufferedImage image;
+        try (InputStream is = TextureCache.class
+                .getResourceAsStream(textureRes)) {
+
+            if (is == null) {
+                throw new IOException(
+                        "Texture '" + textureRes + "' not found !");
+            }
+            image = ImageIO.read(is);
+        }
+        if (image == null) {
+            throw new IOException(
+                    "Invalid texture '" + textureRes + "' !");
+        }
+        return new Texture(textureRes, image);
+    }
+
+    private synchronized void add(String textureRes, Texture texture) {
+        textures.put(textureRes, texture);
+        byteSize += texture.getByteSize();
+        evict(texture);
+    }
+
+    public synchronized void clear() {
+        textures.clear();
+        byteSize = 0;
+    }
+
+    /**
+     * Drops the least recently used textures until the budget is met,
+     * except keep, which is always kept even if it alone is over budget.
+     */
+    private void evict(Texture keep) {
+        Iterator<Texture> iterator = textures.values().iterator();
+        while (byteSize > byteBudget && iterator.hasNext()) {
+            Texture texture = iterator.next();
+            if (texture == keep) {
+                continue;
+            }
+            iterator.remove();
+            byteSize -= texture.getByteSize();
+            evictionCount++;
+        }
+    }
+
+}
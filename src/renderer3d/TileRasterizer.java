@@ -0,0 +1,349 @@
+package renderer3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * TileRasterizer class.
+ *
+ * Draws the triangles of a mesh in two steps: using the screen
+ * coordinates from a VertexTransform, the front-facing triangles are
+ * sorted into bins of tileSize x tileSize screen tiles, then the tiles are
+ * rasterized in parallel. Each tile has its own TriangleRasterizer clipped
+ * to the tile, so workers never write to the same pixels and no locking
+ * is needed.
+ *
+ * Triangles are drawn in each tile in the order of the mesh, so the
+ * result is the same as drawing them one after the other.
+ *
+ * With an occlusion pyramid (see setOcclusionPyramid()) the whole mesh,
+ * and then each triangle, is first tested against the farthest depth
+ * already in the depth buffer, and dropped before binning if it is
+ * entirely behind it. The pyramid has to be built after the depth buffer
+ * is cleared, for example after drawing the big occluders of the frame.
+ *
+ * With a VisibilityBuffer (see setVisibilityBuffer()) draw() only
+ * resolves visibility, the triangle ids written are the mesh triangle
+ * indices, and a DeferredShader textures the pixels afterwards.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class TileRasterizer {
+
+    private final DepthBuffer depthBuffer;
+    private final int[] colorBuffer;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+
+    // bins[tile] holds the indices of the triangles overlapping the tile,
+    // binSizes[tile] how many of them are used in this frame
+    private final int[][] bins;
+    private final int[] binSizes;
+    private final List<Tile> tiles = new ArrayList<>();
+
+    private Mesh mesh;
+    private VertexTransform transform;
+
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+    private long culledTriangleCount;
+    private long occludedTriangleCount;
+    private DepthPyramid occlusionPyramid;
+
+    public TileRasterizer(DepthBuffer depthBuffer, int[] colorBuffer) {
+        this(depthBuffer, colorBuffer, 32);
+    }
+
+    public TileRasterizer(DepthBuffer depthBuffer, int[] colorBuffer
+            , int tileSize) {
+
+        this.depthBuffer = depthBuffer;
+        this.colorBuffer = colorBuffer;
+        this.width = depthBuffer.getWidth();
+        this.height = depthBuffer.getHeight();
+        this.tileSize = tileSize;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        bins = new int[tilesX * tilesY][16];
+        binSizes = new int[tilesX * tilesY];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                tiles.add(new Tile(ty * tilesX + tx, tx * tileSize
+                        , ty * tileSize));
+            }
+        }
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public Texture.Filter getFilter() {
+        return tiles.get(0).rasterizer.getFilter();
+    }
+
+    public void setFilter(Texture.Filter filter) {
+        for (Tile tile : tiles) {
+            tile.rasterizer.setFilter(filter);
+        }
+    }
+
+    public NormalBuffer getNormalBuffer() {
+        return tiles.get(0).rasterizer.getNormalBuffer();
+    }
+
+    /**
+     * Also writes the interpolated mesh normals (rotated by the
+     * VertexTransform) into normalBuffer, unless it is null.
+     */
+    public void setNormalBuffer(NormalBuffer normalBuffer) {
+        for (Tile tile : tiles) {
+            tile.rasterizer.setNormalBuffer(normalBuffer);
+        }
+    }
+
+    public VisibilityBuffer getVisibilityBuffer() {
+        return tiles.get(0).rasterizer.getVisibilityBuffer();
+    }
+
+    /**
+     * Writes the triangle and barycentric weights of every visible pixel
+     * into visibilityBuffer instead of texturing it, unless it is null.
+     * Normals are not written either then, DeferredShader does it.
+     */
+    public void setVisibilityBuffer(VisibilityBuffer visibilityBuffer) {
+        for (Tile tile : tiles) {
+            tile.rasterizer.setVisibilityBuffer(visibilityBuffer);
+        }
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Rasterizes the tiles on workerPool, which stays owned by the
+     * caller.
+     */
+    public void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * @return number of triangles rasterized by the last draw(), a
+     *     triangle is counted once for every tile it touches
+     */
+    public long getTriangleCount() {
+        long count = 0;
+        for (Tile tile : tiles) {
+            count += tile.rasterizer.getTriangleCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of pixels that passed the depth test in the last
+     *     draw()
+     */
+    public long getPixelCount() {
+        long count = 0;
+        for (Tile tile : tiles) {
+            count += tile.rasterizer.getPixelCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of triangles the back-face test dropped in the last
+     *     draw()
+     */
+    public long getCulledTriangleCount() {
+        return culledTriangleCount;
+    }
+
+    /**
+     * @return number of front-facing triangles the occlusion pyramid
+     *     dropped in the last draw(), all of them if the whole mesh was
+     *     occluded
+     */
+    public long getOccludedTriangleCount() {
+        return occludedTriangleCount;
+    }
+
+    public DepthPyramid getOcclusionPyramid() {
+        return occlusionPyramid;
+    }
+
+    /**
+     * Culls the mesh and its triangles against occlusionPyramid, which
+     * must be built from the depth buffer of this rasterizer. null turns
+     * occlusion culling off.
+     */
+    public void setOcclusionPyramid(DepthPyramid occlusionPyramid) {
+        if (occlusionPyramid != null
+                && occlusionPyramid.getDepthBuffer() != depthBuffer) {
+
+            throw new IllegalArgumentException(
+                    "Invalid pyramid of another depth buffer !");
+        }
+        this.occlusionPyramid = occlusionPyramid;
+    }
+
+    /**
+     * Draws the mesh with the screen coordinates of the last call to
+     * transform.transform().
+     */
+    public void draw(Mesh mesh, VertexTransform transform) {
+        this.mesh = mesh;
+        this.transform = transform;
+        Arrays.fill(binSizes, 0);
+        culledTriangleCount = 0;
+        occludedTriangleCount = 0;
+        if (occlusionPyramid != null && isMeshOccluded()) {
+            occludedTriangleCount = mesh.getTriangleCount();
+            return;
+        }
+        int[] indices = mesh.getPositionIndices();
+        for (int i = 0; i < mesh.getTriangleCount(); i++) {
+            bin(indices[3 * i], indices[3 * i + 1], indices[3 * i + 2], i);
+        }
+        workerPool.invokeAll(tiles);
+    }
+
+    private boolean isMeshOccluded() {
+        double[] sx = transform.getScreenX();
+        double[] sy = transform.getScreenY();
+        double[] sz = transform.getDepth();
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxZ = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < transform.getVertexCount(); i++) {
+            minX = Math.min(minX, sx[i]);
+            minY = Math.min(minY, sy[i]);
+            maxX = Math.max(maxX, sx[i]);
+            maxY = Math.max(maxY, sy[i]);
+            maxZ = Math.max(maxZ, sz[i]);
+        }
+        return occlusionPyramid.isOccluded(minX, minY, maxX, maxY, maxZ);
+    }
+
+    private void bin(int a, int b, int c, int triangle) {
+        double[] sx = transform.getScreenX();
+        double[] sy = transform.getScreenY();
+        double ax = sx[a];
+        double ay = sy[a];
+        double bx = sx[b];
+        double by = sy[b];
+        double cx = sx[c];
+        double cy = sy[c];
+
+        // same back-face test as TriangleRasterizer, done here too so
+        // culled triangles don't end up in any bin
+        double area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if (area >= 0) {
+            culledTriangleCount++;
+            return;
+        }
+
+        double minX = Math.min(ax, Math.min(bx, cx));
+        double minY = Math.min(ay, Math.min(by, cy));
+        double maxX = Math.max(ax, Math.max(bx, cx));
+        double maxY = Math.max(ay, Math.max(by, cy));
+        if (occlusionPyramid != null) {
+            double[] sz = transform.getDepth();
+            double maxZ = Math.max(sz[a], Math.max(sz[b], sz[c]));
+            if (occlusionPyramid.isOccluded(minX, minY, maxX, maxY, maxZ)) {
+                occludedTriangleCount++;
+                return;
+            }
+        }
+        int tx0 = Math.max(Math.floorDiv((int) Math.floor(minX), tileSize), 0);
+        int ty0 = Math.max(Math.floorDiv((int) Math.floor(minY), tileSize), 0);
+        int tx1 = Math.min(Math.floorDiv((int) Math.floor(maxX), tileSize), tilesX - 1);
+        int ty1 = Math.min(Math.floorDiv((int) Math.floor(maxY), tileSize), tilesY - 1);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int tile = ty * tilesX + tx;
+                if (binSizes[tile] == bins[tile].length) {
+                    bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+                }
+                bins[tile][binSizes[tile]++] = triangle;
+            }
+        }
+    }
+
+    private class Tile implements Callable<Void> {
+
+        private final int index;
+        private final TriangleRasterizer rasterizer;
+
+        public Tile(int index, int x, int y) {
+            this.index = index;
+            rasterizer = new TriangleRasterizer(depthBuffer, colorBuffer);
+            rasterizer.setClip(x, y, x + tileSize - 1, y + tileSize - 1);
+        }
+
+        @Override
+        public Void call() {
+            rasterizer.resetCounts();
+            double[] sx = transform.getScreenX();
+            double[] sy = transform.getScreenY();
+            double[] sz = transform.getDepth();
+            float[] uvs = mesh.getUvs();
+            int[] positionIndices = mesh.getPositionIndices();
+            int[] uvIndices = mesh.getUvIndices();
+            int[] normalIndices = mesh.getNormalIndices();
+            boolean visibility = rasterizer.getVisibilityBuffer() != null;
+            boolean normals = !visibility
+                    && rasterizer.getNormalBuffer() != null;
+            float[] nx = transform.getNormalX();
+            float[] ny = transform.getNormalY();
+            float[] nz = transform.getNormalZ();
+
+            // the bin is in ascending triangle order, so the material
+            // range only moves forward
+            int range = -1;
+            int rangeEnd = 0;
+            Texture texture = null;
+            int[] bin = bins[index];
+            for (int i = 0; i < binSizes[index]; i++) {
+                int triangle = bin[i];
+                while (triangle >= rangeEnd) {
+                    range++;
+                    rangeEnd = mesh.getRangeEnd(range);
+                    texture = null;
+                }
+                if (visibility) {
+                    rasterizer.setTriangleId(triangle);
+                }
+                else if (texture == null) {
+                    texture = mesh.getRangeMaterial(range).getTexture();
+                }
+                int k = 3 * triangle;
+                int a = positionIndices[k];
+                int b = positionIndices[k + 1];
+                int c = positionIndices[k + 2];
+                int ta = 2 * uvIndices[k];
+                int tb = 2 * uvIndices[k + 1];
+                int tc = 2 * uvIndices[k + 2];
+                if (normals) {
+                    rasterizer.setNormals(nx, ny, nz, normalIndices[k]
+                            , normalIndices[k + 1], normalIndices[k + 2]);
+                }
+                rasterizer.draw(sx[a], sy[a], sz[a], uvs[ta], uvs[ta + 1]
+                        , sx[b], sy[b], sz[b], uvs[tb], uvs[tb + 1]
+                        , sx[c], sy[c], sz[c], uvs[tc], uvs[tc + 1]
+                        , texture);
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,479 @@
+package renderer3d;
+
+/**
+ * TriangleRasterizer class.
+ *
+ * Scanline rasterizer for textured triangles that writes straight into
+ * a DepthBuffer and an int RGB color buffer of the same size.
+ *
+ * Vertex positions are snapped to 1/16 of a pixel and pixels are sampled
+ * at their centers. Coverage is decided with edge functions stepped
+ * incrementally along each row, using the top-left fill rule so pixels
+ * on an edge shared by two triangles are drawn only once.
+ *
+ * Texture coordinates are interpolated linearly in screen space, so
+ * their derivatives and the mip level of detail are constant over a
+ * triangle and computed once per triangle.
+ *
+ * With a NormalBuffer set, the corner normals given by setNormals() are
+ * interpolated the same way and written, normalized, wherever the depth
+ * test passes.
+ *
+ * With a VisibilityBuffer set, nothing is textured: the pixels that pass
+ * the depth test only get the id given by setTriangleId() and the
+ * barycentric weights of the triangle, and a DeferredShader colors them
+ * afterwards, once each whatever the overdraw. The texture may then be
+ * null.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class TriangleRasterizer {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final DepthBuffer depthBuffer;
+    private final int[] colorBuffer;
+    private final int width;
+    private final int height;
+
+    private int clipMinX;
+    private int clipMinY;
+    private int clipMaxX;
+    private int clipMaxY;
+
+    private Texture.Filter filter = Texture.Filter.NEAREST;
+
+    private NormalBuffer normalBuffer;
+    // x, y, z of the normals of the 3 corners of the next triangle
+    private final double[] normals = new double[9];
+
+    private VisibilityBuffer visibilityBuffer;
+    private int triangleId;
+
+    private long triangleCount;
+    private long pixelCount;
+
+    public TriangleRasterizer(DepthBuffer depthBuffer, int[] colorBuffer) {
+        this.depthBuffer = depthBuffer;
+        this.colorBuffer = colorBuffer;
+        this.width = depthBuffer.getWidth();
+        this.height = depthBuffer.getHeight();
+        setClip(0, 0, width - 1, height - 1);
+    }
+
+    /**
+     * Restricts drawing to the pixels from (minX, minY) to (maxX, maxY),
+     * inclusive. Rasterizers with disjoint clip rectangles can draw into
+     * the same buffers at the same time.
+     */
+    public void setClip(int minX, int minY, int maxX, int maxY) {
+        clipMinX = Math.max(minX, 0);
+        clipMinY = Math.max(minY, 0);
+        clipMaxX = Math.min(maxX, width - 1);
+        clipMaxY = Math.min(maxY, height - 1);
+    }
+
+    public Texture.Filter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(Texture.Filter filter) {
+        this.filter = filter;
+    }
+
+    public NormalBuffer getNormalBuffer() {
+        return normalBuffer;
+    }
+
+    /**
+     * @param normalBuffer buffer of the same size as the depth buffer, or
+     *     null to not write normals
+     */
+    public void setNormalBuffer(NormalBuffer normalBuffer) {
+        this.normalBuffer = normalBuffer;
+    }
+
+    /**
+     * Sets the normals of the corners of the next triangle drawn, taken
+     * at indices i0, i1 and i2 of the x, y and z arrays.
+     */
+    public void setNormals(float[] x, float[] y, float[] z
+            , int i0, int i1, int i2) {
+
+        normals[0] = x[i0];
+        normals[1] = y[i0];
+        normals[2] = z[i0];
+        normals[3] = x[i1];
+        normals[4] = y[i1];
+        normals[5] = z[i1];
+        normals[6] = x[i2];
+        normals[7] = y[i2];
+        normals[8] = z[i2];
+    }
+
+    public VisibilityBuffer getVisibilityBuffer() {
+        return visibilityBuffer;
+    }
+
+    /**
+     * @param visibilityBuffer buffer of the same size as the depth buffer
+     *     to only resolve visibility into, or null to texture the pixels
+     */
+    public void setVisibilityBuffer(VisibilityBuffer visibilityBuffer) {
+        this.visibilityBuffer = visibilityBuffer;
+    }
+
+    /**
+     * Sets the id written to the visibility buffer for the next triangle
+     * drawn, whose corners then have to be passed in mesh order.
+     */
+    public void setTriangleId(int triangleId) {
+        this.triangleId = triangleId;
+    }
+
+    public DepthBuffer getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    public int[] getColorBuffer() {
+        return colorBuffer;
+    }
+
+    /**
+     * @return number of triangles rasterized (not culled) so far
+     */
+    public long getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return number of pixels that passed the depth test so far
+     */
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    public void resetCounts() {
+        triangleCount = 0;
+        pixelCount = 0;
+    }
+
+    /**
+     * @return x snapped to the 1/16 pixel grid the points of the
+     *     triangles are rasterized on
+     */
+    public static double snap(double x) {
+        return (double) Math.round(x * SUB) / SUB;
+    }
+
+    /**
+     * Draws a triangle whose points are in screen coordinates (x to the
+     * right, y down, z the depth, bigger is closer) and whose st hold the
+     * texture coordinates.
+     *
+     * @return false if the triangle was culled because it is back-facing
+     *     or degenerate
+     */
+    public boolean draw(Vec3 p0, Vec3 st0, Vec3 p1, Vec3 st1
+            , Vec3 p2, Vec3 st2, Texture texture) {
+
+        return draw(p0.x, p0.y, p0.z, st0.x, st0.y
+                , p1.x, p1.y, p1.z, st1.x, st1.y
+                , p2.x, p2.y, p2.z, st2.x, st2.y, texture);
+    }
+
+    /**
+     * Same as draw(Vec3, ...) with the points and texture coordinates
+     * passed as plain values, for callers that keep them in arrays.
+     */
+    public boolean draw(double px0, double py0, double pz0, double s0, double t0
+            , double px1, double py1, double pz1, double s1, double t1
+            , double px2, double py2, double pz2, double s2, double t2
+            , Texture texture) {
+
+        long x0 = Math.round(px0 * SUB);
+        long y0 = Math.round(py0 * SUB);
+        long x1 = Math.round(px1 * SUB);
+        long y1 = Math.round(py1 * SUB);
+        long x2 = Math.round(px2 * SUB);
+        long y2 = Math.round(py2 * SUB);
+
+        long area = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+
+        // back-face culling, front faces have a negative area on screen
+        if (area >= 0) {
+            return false;
+        }
+
+        // swap points 1 and 2 so the edge functions are positive inside
+        double tp = pz1;
+        pz1 = pz2;
+        pz2 = tp;
+        tp = s1;
+        s1 = s2;
+        s2 = tp;
+        tp = t1;
+        t1 = t2;
+        t2 = tp;
+        long tx = x1;
+        x1 = x2;
+        x2 = tx;
+        long ty = y1;
+        y1 = y2;
+        y2 = ty;
+        area = -area;
+
+        int minX = (int) Math.max(Math.floorDiv(Math.min(x0, Math.min(x1, x2)), SUB), clipMinX);
+        int minY = (int) Math.max(Math.floorDiv(Math.min(y0, Math.min(y1, y2)), SUB), clipMinY);
+        int maxX = (int) Math.min(Math.floorDiv(Math.max(x0, Math.max(x1, x2)), SUB), clipMaxX);
+        int maxY = (int) Math.min(Math.floorDiv(Math.max(y0, Math.max(y1, y2)), SUB), clipMaxY);
+        if (minX > maxX || minY > maxY) {
+            return true;
+        }
+
+        triangleCount++;
+        long pixelCountStart = pixelCount;
+
+        // edge function of edge a -> b at point p:
+        // (xb - xa) * (py - ya) - (yb - ya) * (px - xa)
+        // edge 12 is opposite to point 0, 20 to 1 and 01 to 2
+        long cx = (long) minX * SUB + SUB / 2;
+        long cy = (long) minY * SUB + SUB / 2;
+        long e12Row = (x2 - x1) * (cy - y1) - (y2 - y1) * (cx - x1) + bias(x1, y1, x2, y2);
+        long e20Row = (x0 - x2) * (cy - y2) - (y0 - y2) * (cx - x2) + bias(x2, y2, x0, y0);
+        long e01Row = (x1 - x0) * (cy - y0) - (y1 - y0) * (cx - x0) + bias(x0, y0, x1, y1);
+        long e12StepX = -(y2 - y1) * SUB;
+        long e20StepX = -(y0 - y2) * SUB;
+        long e01StepX = -(y1 - y0) * SUB;
+        long e12StepY = (x2 - x1) * SUB;
+        long e20StepY = (x0 - x2) * SUB;
+        long e01StepY = (x1 - x0) * SUB;
+
+        // attributes are interpolated linearly in screen space
+        double fx0 = (double) x0 / SUB;
+        double fy0 = (double) y0 / SUB;
+        double fx1 = (double) x1 / SUB - fx0;
+        double fy1 = (double) y1 / SUB - fy0;
+        double fx2 = (double) x2 / SUB - fx0;
+        double fy2 = (double) y2 / SUB - fy0;
+        double det = (double) area / (SUB * SUB);
+        double gx1 = fy2 / det;
+        double gx2 = -fy1 / det;
+        double gy1 = -fx2 / det;
+        double gy2 = fx1 / det;
+
+        double dz1 = pz1 - pz0;
+        double dz2 = pz2 - pz0;
+        double dzdx = dz1 * gx1 + dz2 * gx2;
+        double dzdy = dz1 * gy1 + dz2 * gy2;
+        double ds1 = s1 - s0;
+        double ds2 = s2 - s0;
+        double dsdx = ds1 * gx1 + ds2 * gx2;
+        double dsdy = ds1 * gy1 + ds2 * gy2;
+        double dt1 = t1 - t0;
+        double dt2 = t2 - t0;
+        double dtdx = dt1 * gx1 + dt2 * gx2;
+        double dtdy = dt1 * gy1 + dt2 * gy2;
+
+        double startX = minX + 0.5 - fx0;
+        double startY = minY + 0.5 - fy0;
+        double zRow = pz0 + dzdx * startX + dzdy * startY;
+        double sRow = s0 + dsdx * startX + dsdy * startY;
+        double tRow = t0 + dtdx * startX + dtdy * startY;
+
+        VisibilityBuffer visibilityBuffer = this.visibilityBuffer;
+        if (visibilityBuffer != null) {
+            // weights of corners 1 and 2, swapped like the points
+            double b1Row = gx2 * startX + gy2 * startY;
+            double b2Row = gx1 * startX + gy1 * startY;
+            int triangleId = this.triangleId;
+            for (int y = minY; y <= maxY; y++) {
+                long e12 = e12Row;
+                long e20 = e20Row;
+                long e01 = e01Row;
+                double z = zRow;
+                double b1 = b1Row;
+                double b2 = b2Row;
+                boolean inside = false;
+                int index = y * width + minX;
+                for (int x = minX; x <= maxX; x++, index++) {
+                    if ((e12 | e20 | e01) >= 0) {
+                        inside = true;
+                        if (depthBuffer.updateUnchecked(
+                                depthBuffer.index(x, y), z)) {
+
+                            visibilityBuffer.setUnchecked(
+                                    index, triangleId, b1, b2);
+                            pixelCount++;
+                        }
+                    }
+                    else if (inside) {
+                        break;
+                    }
+                    e12 += e12StepX;
+                    e20 += e20StepX;
+                    e01 += e01StepX;
+                    z += dzdx;
+                    b1 += gx2;
+                    b2 += gx1;
+                }
+                e12Row += e12StepY;
+                e20Row += e20StepY;
+                e01Row += e01StepY;
+                zRow += dzdy;
+                b1Row += gy2;
+                b2Row += gy1;
+            }
+            markDirty(pixelCountStart, minX, minY, maxX, maxY);
+            return true;
+        }
+
+        // normals, corners 1 and 2 are swapped like the points
+        NormalBuffer normalBuffer = this.normalBuffer;
+        double nxRow = 0;
+        double nyRow = 0;
+        double nzRow = 0;
+        double dnxdx = 0;
+        double dnydx = 0;
+        double dnzdx = 0;
+        double dnxdy = 0;
+        double dnydy = 0;
+        double dnzdy = 0;
+        if (normalBuffer != null) {
+            double dn1 = normals[6] - normals[0];
+            double dn2 = normals[3] - normals[0];
+            dnxdx = dn1 * gx1 + dn2 * gx2;
+            dnxdy = dn1 * gy1 + dn2 * gy2;
+            nxRow = normals[0] + dnxdx * startX + dnxdy * startY;
+            dn1 = normals[7] - normals[1];
+            dn2 = normals[4] - normals[1];
+            dnydx = dn1 * gx1 + dn2 * gx2;
+            dnydy = dn1 * gy1 + dn2 * gy2;
+            nyRow = normals[1] + dnydx * startX + dnydy * startY;
+            dn1 = normals[8] - normals[2];
+            dn2 = normals[5] - normals[2];
+            dnzdx = dn1 * gx1 + dn2 * gx2;
+            dnzdy = dn1 * gy1 + dn2 * gy2;
+            nzRow = normals[2] + dnzdx * startX + dnzdy * startY;
+        }
+
+        double lod = texture.computeLod(dsdx, dtdx, dsdy, dtdy);
+        int level = texture.getNearestLevel(lod);
+        int[] texels = texture.getLevelTexels(level);
+        int textureWidth = texture.getLevelWidth(level);
+        int textureHeight = texture.getLevelHeight(level);
+        int widthMask = textureWidth - 1;
+        int heightMask = textureHeight - 1;
+        boolean powerOfTwo = texture.isPowerOfTwo();
+        Texture.Filter filter = this.filter;
+
+        for (int y = minY; y <= maxY; y++) {
+            long e12 = e12Row;
+            long e20 = e20Row;
+            long e01 = e01Row;
+            double z = zRow;
+            double s = sRow;
+            double t = tRow;
+            boolean inside = false;
+            int index = y * width + minX;
+            for (int x = minX; x <= maxX; x++, index++) {
+                if ((e12 | e20 | e01) >= 0) {
+                    inside = true;
+                    if (depthBuffer.updateUnchecked(
+                            depthBuffer.index(x, y), z)) {
+
+                        if (filter == Texture.Filter.BILINEAR) {
+                            colorBuffer[index]
+                                    = texture.sampleBilinear(level, s, t);
+                        }
+                        else if (filter == Texture.Filter.TRILINEAR) {
+                            colorBuffer[index]
+                                    = texture.sampleTrilinear(lod, s, t);
+                        }
+                        else {
+                            colorBuffer[index] = sampleNearest(texels
+                                    , textureWidth, textureHeight, widthMask
+                                    , heightMask, powerOfTwo, s, t);
+                        }
+                        if (normalBuffer != null) {
+                            int dx = x - minX;
+                            normalBuffer.setUnchecked(index
+                                    , nxRow + dnxdx * dx
+                                    , nyRow + dnydx * dx
+                                    , nzRow + dnzdx * dx);
+                        }
+                        pixelCount++;
+                    }
+                }
+                else if (inside) {
+                    // the rest of the row is outside the triangle
+                    break;
+                }
+                e12 += e12StepX;
+                e20 += e20StepX;
+                e01 += e01StepX;
+                z += dzdx;
+                s += dsdx;
+                t += dtdx;
+            }
+            e12Row += e12StepY;
+            e20Row += e20StepY;
+            e01Row += e01StepY;
+            zRow += dzdy;
+            sRow += dsdy;
+            tRow += dtdy;
+            nxRow += dnxdy;
+            nyRow += dnydy;
+            nzRow += dnzdy;
+        }
+        markDirty(pixelCountStart, minX, minY, maxX, maxY);
+        return true;
+    }
+
+    /**
+     * The depth writes don't mark the dirty tiles, the bounding box of
+     * the triangle is marked once if any pixel passed.
+     */
+    private void markDirty(long pixelCountStart
+            , int minX, int minY, int maxX, int maxY) {
+
+        if (pixelCount != pixelCountStart) {
+            depthBuffer.markDirty(minX, minY, maxX, maxY);
+        }
+    }
+
+    /**
+     * Nearest texel, repeated. Same as Texture.sampleNearest(), with the
+     * level already looked up.
+     */
+    private static int sampleNearest(int[] texels, int textureWidth
+            , int textureHeight, int widthMask, int heightMask
+            , boolean powerOfTwo, double s, double t) {
+
+        int u = (int) Math.floor(s * textureWidth);
+        int v = (int) Math.floor((1 - t) * textureHeight);
+        if (powerOfTwo) {
+            u &= widthMask;
+            v &= heightMask;
+        }
+        else {
+            u = Math.floorMod(u, textureWidth);
+            v = Math.floorMod(v, textureHeight);
+        }
+        return texels[v * textureWidth + u];
+    }
+
+    /**
+     * Top-left fill rule. Pixel centers exactly on a top or left edge are
+     * inside, on the other edges they are outside, so the edge function
+     * of those is biased by -1.
+     */
+    private static long bias(long xa, long ya, long xb, long yb) {
+        long dx = xb - xa;
+        long dy = yb - ya;
+        boolean topLeft = dy < 0 || (dy == 0 && dx > 0);
+        return topLeft ? 0 : -1;
+    }
+
+}
@@ -0,0 +1,283 @@
+package renderer3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * VertexTransform class.
+ *
+ * Transforms the unique positions of a mesh once per frame, instead of
+ * once for every triangle that uses them. The positions are read from the
+ * packed mesh stream and transformed by one 4x4 matrix that combines the
+ * rotation, the camera distance and the projection. The resulting screen
+ * coordinates are cached in separate screenX, screenY and depth arrays
+ * (structure of arrays), indexed like the mesh positions.
+ *
+ * The normals of the mesh are rotated along, into normalX, normalY and
+ * normalZ, indexed like the mesh normals.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class VertexTransform {
+
+    private final int vertexCount;
+    private final float[] positions;
+
+    private final double[] screenX;
+    private final double[] screenY;
+    private final double[] depth;
+
+    private final int normalCount;
+    private final float[] normals;
+    private final float[] normalX;
+    private final float[] normalY;
+    private final float[] normalZ;
+
+    // row-major, applied to column vectors (x, y, z, 1)
+    private final double[] matrix = new double[16];
+
+    private double angleY;
+    private double angleX;
+    private double focalLength = 600;
+    private double cameraDistance = 600;
+
+    private int halfWidth;
+    private int halfHeight;
+
+    private WorkerPool workerPool = WorkerPool.CALLING_THREAD;
+    private final List<Range> ranges = new ArrayList<>();
+
+    public VertexTransform(Mesh mesh) {
+        vertexCount = mesh.getPositionCount();
+        positions = mesh.getPositions();
+        screenX = new double[vertexCount];
+        screenY = new double[vertexCount];
+        depth = new double[vertexCount];
+        normalCount = mesh.getNormalCount();
+        normals = mesh.getNormals();
+        normalX = new float[normalCount];
+        normalY = new float[normalCount];
+        normalZ = new float[normalCount];
+        createRanges();
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public double[] getScreenX() {
+        return screenX;
+    }
+
+    public double[] getScreenY() {
+        return screenY;
+    }
+
+    public double[] getDepth() {
+        return depth;
+    }
+
+    public float[] getNormalX() {
+        return normalX;
+    }
+
+    public float[] getNormalY() {
+        return normalY;
+    }
+
+    public float[] getNormalZ() {
+        return normalZ;
+    }
+
+    public double getFocalLength() {
+        return focalLength;
+    }
+
+    public void setFocalLength(double focalLength) {
+        this.focalLength = focalLength;
+    }
+
+    public double getCameraDistance() {
+        return cameraDistance;
+    }
+
+    public void setCameraDistance(double cameraDistance) {
+        this.cameraDistance = cameraDistance;
+    }
+
+    public int getHalfWidth() {
+        return halfWidth;
+    }
+
+    public int getHalfHeight() {
+        return halfHeight;
+    }
+
+    /**
+     * Copies the rotation and translation used by the last transform()
+     * into dst as a row-major 3x4 matrix, view = dst * (x, y, z, 1). The
+     * view space z is the depth, and the screen position of a view space
+     * point is (halfWidth + f * x / -z, halfHeight - f * y / -z).
+     */
+    public void getViewMatrix(double[] dst) {
+        System.arraycopy(matrix, 0, dst, 0, 12);
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Splits transform() over the threads of workerPool, which stays
+     * owned by the caller. Only worth it for large meshes.
+     */
+    public void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+        createRanges();
+    }
+
+    private void createRanges() {
+        ranges.clear();
+        int rangeCount = workerPool.getTaskCount(vertexCount);
+        for (int i = 0; i < rangeCount; i++) {
+            ranges.add(new Range(vertexCount * i / rangeCount
+                    , vertexCount * (i + 1) / rangeCount
+                    , normalCount * i / rangeCount
+                    , normalCount * (i + 1) / rangeCount));
+        }
+    }
+
+    /**
+     * Sets a rotation around the y axis by angleY, then around the x axis
+     * by angleX, same as Vec3.rotateY() followed by Vec3.rotateX().
+     */
+    public void setRotation(double angleY, double angleX) {
+        this.angleY = angleY;
+        this.angleX = angleX;
+    }
+
+    /**
+     * Builds the matrix for the rotation, a translation of -cameraDistance
+     * along z and the projection. The projection leaves the view space z
+     * in the third row, used as depth, and -z / focalLength in the fourth
+     * one, used for the perspective divide.
+     */
+    private void updateMatrix() {
+        double sy = Math.sin(angleY);
+        double cy = Math.cos(angleY);
+        double sx = Math.sin(angleX);
+        double cx = Math.cos(angleX);
+
+        // rotation rows: rx * ry
+        double r00 = cy;
+        double r01 = 0;
+        double r02 = -sy;
+        double r10 = sx * sy;
+        double r11 = cx;
+        double r12 = sx * cy;
+        double r20 = cx * sy;
+        double r21 = -sx;
+        double r22 = cx * cy;
+        double tz = -cameraDistance;
+
+        set(0, r00, r01, r02, 0);
+        set(1, r10, r11, r12, 0);
+        set(2, r20, r21, r22, tz);
+        double w = -1 / focalLength;
+        set(3, r20 * w, r21 * w, r22 * w, tz * w);
+    }
+
+    private void set(int row, double m0, double m1, double m2, double m3) {
+        matrix[row * 4] = m0;
+        matrix[row * 4 + 1] = m1;
+        matrix[row * 4 + 2] = m2;
+        matrix[row * 4 + 3] = m3;
+    }
+
+    public void transform(int halfWidth, int halfHeight) {
+        this.halfWidth = halfWidth;
+        this.halfHeight = halfHeight;
+        updateMatrix();
+        workerPool.invokeAll(ranges);
+    }
+
+    private void transformRange(int first, int last) {
+        double m00 = matrix[0];
+        double m01 = matrix[1];
+        double m02 = matrix[2];
+        double m03 = matrix[3];
+        double m10 = matrix[4];
+        double m11 = matrix[5];
+        double m12 = matrix[6];
+        double m13 = matrix[7];
+        double m20 = matrix[8];
+        double m21 = matrix[9];
+        double m22 = matrix[10];
+        double m23 = matrix[11];
+        double m30 = matrix[12];
+        double m31 = matrix[13];
+        double m32 = matrix[14];
+        double m33 = matrix[15];
+        for (int i = first; i < last; i++) {
+            double vx = positions[3 * i];
+            double vy = positions[3 * i + 1];
+            double vz = positions[3 * i + 2];
+            double px = m00 * vx + m01 * vy + m02 * vz + m03;
+            double py = m10 * vx + m11 * vy + m12 * vz + m13;
+            double pz = m20 * vx + m21 * vy + m22 * vz + m23;
+            double pw = m30 * vx + m31 * vy + m32 * vz + m33;
+            screenX[i] = halfWidth + px / pw;
+            screenY[i] = halfHeight - py / pw;
+            depth[i] = pz;
+        }
+    }
+
+    /**
+     * Applies the rotation part of the matrix, which is orthonormal, so
+     * the normals don't need the inverse transpose.
+     */
+    private void transformNormals(int first, int last) {
+        double m00 = matrix[0];
+        double m01 = matrix[1];
+        double m02 = matrix[2];
+        double m10 = matrix[4];
+        double m11 = matrix[5];
+        double m12 = matrix[6];
+        double m20 = matrix[8];
+        double m21 = matrix[9];
+        double m22 = matrix[10];
+        for (int i = first; i < last; i++) {
+            double nx = normals[3 * i];
+            double ny = normals[3 * i + 1];
+            double nz = normals[3 * i + 2];
+            normalX[i] = (float) (m00 * nx + m01 * ny + m02 * nz);
+            normalY[i] = (float) (m10 * nx + m11 * ny + m12 * nz);
+            normalZ[i] = (float) (m20 * nx + m21 * ny + m22 * nz);
+        }
+    }
+
+    private class Range implements Callable<Void> {
+
+        private final int first;
+        private final int last;
+        private final int normalFirst;
+        private final int normalLast;
+
+        public Range(int first, int last, int normalFirst, int normalLast) {
+            this.first = first;
+            this.last = last;
+            this.normalFirst = normalFirst;
+            this.normalLast = normalLast;
+        }
+
+        @Override
+        public Void call() {
+            transformRange(first, last);
+            transformNormals(normalFirst, normalLast);
+            return null;
+        }
+
+    }
+
+}
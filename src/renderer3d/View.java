@@ -8,8 +8,13 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
@@ -27,18 +32,95 @@ import javax.swing.SwingUtilities;
  */
 public class View extends Canvas implements KeyListener {
     
-    private BufferStrategy bs;
+    private static final int FRAME_SETS = 3;
+    private static final long FRAME_PERIOD = 1000000000L / 60;
     
-    private BufferedImage image;
-    private DepthBuffer depthBuffer;
+    private BufferStrategy bs;
     
     private final MeshLoader meshLoader = new MeshLoader();
     
-    private SSAO ssao;
+    private FramePipeline<FrameSet> pipeline;
     
-    private boolean running;
+    // shared by the renderers of all the frame sets, closed by stop()
+    private final WorkerPool workerPool = new WorkerPool(
+            Runtime.getRuntime().availableProcessors());
     
-    private int showType = 2;
+    // time of every stage, see FrameMetrics for the JMX names
+    private final FrameMetrics metrics = new FrameMetrics("renderer3d");
+    private final LatencyHistogram clearTime = metrics.getHistogram("clear");
+    private final LatencyHistogram transformTime = metrics.getHistogram("transform");
+    private final LatencyHistogram rasterTime = metrics.getHistogram("raster");
+    private final LatencyHistogram shadeTime = metrics.getHistogram("shade");
+    private final LatencyHistogram ssaoTime = metrics.getHistogram("ssao");
+    private final LatencyHistogram blurTime = metrics.getHistogram("blur");
+    private final LatencyHistogram compositeTime = metrics.getHistogram("composite");
+    private final LatencyHistogram presentTime = metrics.getHistogram("present");
+    // between two presented frames, and from the start of a frame to its
+    // presentation
+    private final LatencyHistogram frameTime = metrics.getHistogram("frame");
+    private final LatencyHistogram latency = metrics.getHistogram("latency");
+    private final EventCounter trianglesDrawn = metrics.getCounter("triangles.drawn");
+    private final EventCounter trianglesCulled = metrics.getCounter("triangles.culled");
+    private final EventCounter depthPassed = metrics.getCounter("pixels.depth.passed");
+    private final EventCounter pixelsShaded = metrics.getCounter("pixels.shaded");
+    private final EventCounter aoComputed = metrics.getCounter("pixels.ao.computed");
+    private final EventCounter aoSkipped = metrics.getCounter("pixels.ao.skipped");
+    private long lastPresentTime;
+    
+    // read by the pipeline stages when they start a frame
+    private volatile int showType = 2;
+    private volatile Texture.Filter filter = Texture.Filter.NEAREST;
+    private volatile SSAO.Kernel kernel = SSAO.Kernel.HORIZON;
+    private volatile int temporalFrames = 1;
+    private volatile boolean hierarchical;
+    private volatile boolean deferred;
+    private volatile boolean overlay;
+    
+    /**
+     * Buffers of one frame in flight.
+     */
+    private class FrameSet {
+        
+        private final BufferedImage image;
+        private final DepthBuffer depthBuffer;
+        private final NormalBuffer normalBuffer;
+        private final TileRasterizer rasterizer;
+        private final VisibilityBuffer visibilityBuffer;
+        private final DeferredShader shader;
+        private final VertexTransform vertexTransform;
+        private final SSAO ssao;
+        
+        // kernel the frame is drawn for, only HEMISPHERE reads normals
+        private SSAO.Kernel kernel;
+        
+        // what the present stage shows
+        private int showType;
+        private BufferedImage occlusion;
+        private long startTime;
+        
+        public FrameSet(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            depthBuffer = new DepthBuffer(width, height);
+            normalBuffer = new NormalBuffer(width, height);
+            int[] colorBuffer = ((DataBufferInt) image.getRaster()
+                    .getDataBuffer()).getData();
+            
+            rasterizer = new TileRasterizer(depthBuffer, colorBuffer);
+            rasterizer.setWorkerPool(workerPool);
+            
+            visibilityBuffer = new VisibilityBuffer(width, height);
+            shader = new DeferredShader(visibilityBuffer, colorBuffer);
+            shader.setWorkerPool(workerPool);
+            
+            vertexTransform = new VertexTransform(meshLoader.getMesh());
+            
+            ssao = new SSAO(depthBuffer);
+            ssao.setWorkerPool(workerPool);
+            ssao.setNormalBuffer(normalBuffer);
+            ssao.setTransform(vertexTransform);
+        }
+        
+    }
     
     public View() {
     }
@@ -48,10 +130,9 @@ public class View extends Canvas implements KeyListener {
         
         int width = 800;
         int height = 600;
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        depthBuffer = new DepthBuffer(width, height);
-        ssao = new SSAO(depthBuffer);
         
+        meshLoader.setWorkerPool(workerPool);
+        meshLoader.setCacheEnabled(true);
         try {
             meshLoader.load("/res/mariohead.obj", 70, 0, 30, 0);
             //meshLoader.load("/res/hero.obj", 2, 0, -350, 0);
@@ -60,73 +141,173 @@ public class View extends Canvas implements KeyListener {
             System.exit(1);
         }
         
+        try {
+            metrics.registerMBeans();
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(View.class.getName()).log(Level.WARNING, null, ex);
+        }
+        
         createBufferStrategy(2);
         bs = getBufferStrategy();
-        running = true;
-        
-        new Thread(() -> {
-            while (running) {
-                update();
-                draw((Graphics2D) image.getGraphics());
-                Graphics2D g = (Graphics2D) bs.getDrawGraphics();
-                
-                Graphics2D ig = (Graphics2D) image.getGraphics();
+        
+        // frame N + 1 is rasterized while frame N goes through SSAO and
+        // frame N - 1 is presented
+        List<FrameSet> frameSets = new ArrayList<>();
+        for (int i = 0; i < FRAME_SETS; i++) {
+            frameSets.add(new FrameSet(width, height));
+        }
+        List<FramePipeline.Stage<FrameSet>> stages = new ArrayList<>();
+        stages.add(this::draw);
+        stages.add(this::postProcess);
+        stages.add(this::present);
+        pipeline = new FramePipeline<>("View", frameSets, stages, FRAME_PERIOD);
+        pipeline.start();
+    }
+    
+    /**
+     * Stops the pipeline and the worker threads.
+     */
+    public void stop() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        metrics.unregisterMBeans();
+        workerPool.close();
+    }
 
-                // 2D outline post processing
-                
-                // only flat
-                if (showType == 0) {
-                    ig.setRenderingHint(RenderingHints.KEY_INTERPOLATION
-                            , RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    private void draw(FrameSet frame, long index) {
+        double angle = 0.025 * (index + 1);
+        long time = System.nanoTime();
+        frame.startTime = time;
+        
+        Graphics2D g = frame.image.createGraphics();
+        g.setBackground(Color.WHITE);
+        g.clearRect(0, 0, frame.image.getWidth(), frame.image.getHeight());
+        g.dispose();
 
-                    ig.drawImage(image, 0, 0, 400, 300, 0, 0, width, height, this);
-                    g.drawImage(image, 0, 0, getWidth(), getHeight(), 0, 0, 400, 300, null);
-                }
-                // only SSAO
-                else if (showType == 1) {
-                    ssao.process();
-                    g.clearRect(0, 0, getWidth(), getHeight());
-                    g.drawImage(ssao.getBlurred(), 0, 0, getWidth(), getHeight(), null);
-                }
-                // flat + SSAO
-                else if (showType == 2) {
-                    ssao.process();
-                    ig.drawImage(ssao.getBlurred(), 0, 0, null);
+        frame.depthBuffer.clear();
+        frame.kernel = kernel;
+        NormalBuffer normalBuffer = null;
+        if (frame.kernel == SSAO.Kernel.HEMISPHERE) {
+            normalBuffer = frame.normalBuffer;
+            normalBuffer.clear();
+        }
+        boolean deferred = this.deferred;
+        if (deferred) {
+            frame.visibilityBuffer.clear();
+        }
+        time = clearTime.recordSince(time);
 
-                    ig.setRenderingHint(RenderingHints.KEY_INTERPOLATION
-                            , RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        Texture.Filter filter = this.filter;
+        frame.rasterizer.setFilter(filter);
+        frame.rasterizer.setNormalBuffer(normalBuffer);
+        frame.rasterizer.setVisibilityBuffer(
+                deferred ? frame.visibilityBuffer : null);
+        
+        frame.shader.setFilter(filter);
+        frame.shader.setNormalBuffer(normalBuffer);
+        frame.vertexTransform.setRotation(angle, -0.25);
+        frame.vertexTransform.transform(frame.image.getWidth() / 2
+                , frame.image.getHeight() / 2);
+        time = transformTime.recordSince(time);
+        
+        frame.rasterizer.draw(meshLoader.getMesh(), frame.vertexTransform);
+        time = rasterTime.recordSince(time);
+        trianglesDrawn.add(frame.rasterizer.getTriangleCount());
+        trianglesCulled.add(frame.rasterizer.getCulledTriangleCount());
+        depthPassed.add(frame.rasterizer.getPixelCount());
+        
+        // textures each visible pixel once, whatever the overdraw
+        if (deferred) {
+            frame.shader.shade(meshLoader.getMesh(), frame.vertexTransform);
+            shadeTime.recordSince(time);
+            pixelsShaded.add(frame.shader.getPixelCount());
+        }
+    }
+    
+    private void postProcess(FrameSet frame, long index) {
+        int width = frame.image.getWidth();
+        int height = frame.image.getHeight();
+        SSAO ssao = frame.ssao;
+        if (ssao.getKernel() != frame.kernel) {
+            ssao.setKernel(frame.kernel);
+        }
+        if (ssao.getTemporalFrames() != temporalFrames) {
+            ssao.setTemporalFrames(temporalFrames);
+        }
+        if (ssao.isHierarchical() != hierarchical) {
+            ssao.setHierarchical(hierarchical);
+        }
+        
+        frame.showType = showType;
+        Graphics2D ig = frame.image.createGraphics();
 
-                    ig.drawImage(image, 0, 0, 400, 300, 0, 0, width, height, this);
+        // 2D outline post processing
+        
+        // only flat
+        if (frame.showType == 0) {
+            ig.setRenderingHint(RenderingHints.KEY_INTERPOLATION
+                    , RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 
-                    //g.clearRect(0, 0, getWidth(), getHeight());
+            ig.drawImage(frame.image, 0, 0, 400, 300, 0, 0, width, height, this);
+        }
+        // only SSAO
+        else if (frame.showType == 1) {
+            long time = processOcclusion(ssao);
+            frame.occlusion = ssao.getBlurred();
+            blurTime.recordSince(time);
+        }
+        // flat + SSAO
+        else if (frame.showType == 2) {
+            long time = processOcclusion(ssao);
+            BufferedImage blurred = ssao.getBlurred();
+            time = blurTime.recordSince(time);
+            ig.drawImage(blurred, 0, 0, null);
 
-                    g.drawImage(image, 0, 0, getWidth(), getHeight(), 0, 0, 400, 300, null);
-                }
+            ig.setRenderingHint(RenderingHints.KEY_INTERPOLATION
+                    , RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 
-                
-                g.dispose();
-                bs.show();
-                
-                try {
-                    Thread.sleep(1000 / 60);
-                } catch (InterruptedException ex) {
-                }
-            }
-        }).start();
+            ig.drawImage(frame.image, 0, 0, 400, 300, 0, 0, width, height, this);
+            compositeTime.recordSince(time);
+        }
+        ig.dispose();
     }
-
-    private void update() {
+    
+    /**
+     * @return the time process() returned
+     */
+    private long processOcclusion(SSAO ssao) {
+        long time = System.nanoTime();
+        ssao.process();
+        time = ssaoTime.recordSince(time);
+        aoComputed.add(ssao.getComputedPixelCount());
+        aoSkipped.add(ssao.getSkippedPixelCount());
+        return time;
     }
     
-    private void draw(Graphics2D g) {
-        g.setBackground(Color.WHITE);
-        g.clearRect(0, 0, getWidth(), getHeight());
-
-        depthBuffer.clear();
-
-        meshLoader.getFaces().forEach((face) -> {
-            face.draw(g, depthBuffer, image.getWidth() / 2, image.getHeight() / 2);
-        });
+    private void present(FrameSet frame, long index) {
+        long time = System.nanoTime();
+        Graphics2D g = (Graphics2D) bs.getDrawGraphics();
+        if (frame.showType == 1) {
+            g.clearRect(0, 0, getWidth(), getHeight());
+            g.drawImage(frame.occlusion, 0, 0, getWidth(), getHeight(), null);
+        }
+        else {
+            //g.clearRect(0, 0, getWidth(), getHeight());
+            
+            g.drawImage(frame.image, 0, 0, getWidth(), getHeight(), 0, 0, 400, 300, null);
+        }
+        if (overlay) {
+            metrics.paintOverlay(g, 8, 8);
+        }
+        g.dispose();
+        bs.show();
+        time = presentTime.recordSince(time);
+        latency.record(time - frame.startTime);
+        if (lastPresentTime != 0) {
+            frameTime.record(time - lastPresentTime);
+        }
+        lastPresentTime = time;
     }
     
     public static void main(String[] args) {
@@ -140,6 +321,12 @@ public class View extends Canvas implements KeyListener {
             frame.pack();
             frame.setLocationRelativeTo(null);
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    view.stop();
+                }
+            });
             frame.setVisible(true);
             view.requestFocus();
             view.start();
@@ -162,6 +349,29 @@ public class View extends Canvas implements KeyListener {
             case KeyEvent.VK_2:
                 showType = 2;
                 break;
+            case KeyEvent.VK_F:
+                Texture.Filter[] filters = Texture.Filter.values();
+                filter = filters[(filter.ordinal() + 1) % filters.length];
+                break;
+            case KeyEvent.VK_K:
+                SSAO.Kernel[] kernels = SSAO.Kernel.values();
+                kernel = kernels[(kernel.ordinal() + 1) % kernels.length];
+                break;
+            case KeyEvent.VK_T:
+                temporalFrames = temporalFrames == 1 ? 4 : 1;
+                break;
+            case KeyEvent.VK_H:
+                hierarchical = !hierarchical;
+                break;
+            case KeyEvent.VK_D:
+                deferred = !deferred;
+                break;
+            case KeyEvent.VK_M:
+                overlay = !overlay;
+                break;
+            case KeyEvent.VK_R:
+                metrics.reset();
+                break;
             default:
                 break;
         }
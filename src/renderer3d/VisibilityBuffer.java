@@ -0,0 +1,72 @@
+package renderer3d;
+
+import java.util.Arrays;
+
+/**
+ * VisibilityBuffer class.
+ *
+ * What the first pass of deferred shading leaves for the second: for
+ * every pixel the mesh triangle that won the depth test and the screen
+ * space barycentric weights of its corners 1 and 2 at the pixel center
+ * (corner 0 gets 1 - b1 - b2), stored row by row like NormalBuffer.
+ * Pixels nothing was drawn on hold triangle NO_TRIANGLE.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class VisibilityBuffer {
+
+    public static final int NO_TRIANGLE = -1;
+
+    private final int width;
+    private final int height;
+    private final int[] triangle;
+    private final float[] b1;
+    private final float[] b2;
+
+    public VisibilityBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        triangle = new int[width * height];
+        b1 = new float[width * height];
+        b2 = new float[width * height];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getTriangle() {
+        return triangle;
+    }
+
+    public float[] getB1() {
+        return b1;
+    }
+
+    public float[] getB2() {
+        return b2;
+    }
+
+    /**
+     * No bounds check.
+     */
+    public void setUnchecked(int index, int triangle, double b1, double b2) {
+        this.triangle[index] = triangle;
+        this.b1[index] = (float) b1;
+        this.b2[index] = (float) b2;
+    }
+
+    /**
+     * Only resets the triangles, the weights of pixels without one are
+     * never read.
+     */
+    public void clear() {
+        Arrays.fill(triangle, NO_TRIANGLE);
+    }
+
+}
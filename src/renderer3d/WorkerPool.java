@@ -0,0 +1,117 @@
+package renderer3d;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * WorkerPool class.
+ *
+ * Worker threads shared by the renderers of a program. TileRasterizer,
+ * VertexTransform, DeferredShader, SSAO and MeshLoader split their work
+ * into about 4 tasks per worker and hand them to invokeAll(), so one
+ * pool sized to the cores serves all of them, even when several frames
+ * are in flight, instead of each one starting its own threads.
+ *
+ * Whoever creates a WorkerPool owns it and must close() it, the
+ * renderers it is given to only use it. CALLING_THREAD has no threads
+ * and runs everything on the caller, it is the default of the renderers
+ * and never needs closing.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class WorkerPool implements AutoCloseable {
+
+    public static final WorkerPool CALLING_THREAD = new WorkerPool(1);
+
+    private final int workerCount;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param workerCount number of threads, 1 to run the tasks on the
+     *     calling thread
+     */
+    public WorkerPool(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid worker count " + workerCount + " !");
+        }
+        this.workerCount = workerCount;
+        pool = workerCount > 1 ? new ForkJoinPool(workerCount) : null;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * @return how many tasks to split count items (rows, vertices...)
+     *     into: 1 on a single worker, otherwise a few per worker so that
+     *     uneven tasks don't leave the other workers idle
+     */
+    public int getTaskCount(int count) {
+        if (workerCount == 1) {
+            return 1;
+        }
+        return Math.max(1, Math.min(count, workerCount * 4));
+    }
+
+    /**
+     * Runs the tasks and waits for all of them. A single task, or all of
+     * them without worker threads, runs on the calling thread.
+     *
+     * @throws RuntimeException with the first exception a task threw as
+     *     its cause, or that exception itself if it is unchecked
+     */
+    public void invokeAll(List<? extends Callable<Void>> tasks) {
+        if (pool == null || tasks.size() == 1) {
+            // no iterator, so this path allocates nothing
+            for (int i = 0; i < tasks.size(); i++) {
+                call(tasks.get(i));
+            }
+            return;
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw unchecked(ex.getCause());
+        }
+    }
+
+    private static void call(Callable<Void> task) {
+        try {
+            task.call();
+        } catch (Exception ex) {
+            throw unchecked(ex);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Stops the threads once the tasks already submitted are done.
+     * CALLING_THREAD can't be closed.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+}
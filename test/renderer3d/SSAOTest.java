@@ -0,0 +1,130 @@
+package renderer3d;
+
+import java.lang.management.ManagementFactory;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SSAOTest class.
+ *
+ * Checks that process() allocates nothing once it has run a few times,
+ * in each of its modes. Allocations are counted with the ThreadMXBean of
+ * the calling thread, so the SSAO runs with a single worker.
+ *
+ * @author Leonardo Ono (ono.leo80@gmail.com)
+ */
+public class SSAOTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int WARMUP = 20;
+    private static final int RUNS = 20;
+
+    private final com.sun.management.ThreadMXBean threadBean
+            = (com.sun.management.ThreadMXBean)
+                    ManagementFactory.getThreadMXBean();
+
+    private DepthBuffer depthBuffer;
+    private NormalBuffer normalBuffer;
+
+    /**
+     * A sphere in front of a tilted plane, with background around them.
+     */
+    @Before
+    public void setUp() {
+        depthBuffer = new DepthBuffer(WIDTH, HEIGHT);
+        normalBuffer = new NormalBuffer(WIDTH, HEIGHT);
+        depthBuffer.clear();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (x < 8 || y < 8) {
+                    continue;
+                }
+                double dx = x - WIDTH / 2;
+                double dy = y - HEIGHT / 2;
+                double r2 = 40 * 40 - dx * dx - dy * dy;
+                int index = y * WIDTH + x;
+                if (r2 > 0) {
+                    double dz = Math.sqrt(r2);
+                    depthBuffer.set(x, y, -300 + dz);
+                    normalBuffer.setUnchecked(index, dx, -dy, dz);
+                }
+                else {
+                    depthBuffer.set(x, y, -340 + 0.2 * y);
+                    normalBuffer.setUnchecked(index, 0, 0.2, 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void processHorizonDoesNotAllocate() {
+        assertNoAllocation(new SSAO(depthBuffer));
+    }
+
+    @Test
+    public void processHierarchicalDoesNotAllocate() {
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setHierarchical(true);
+        assertNoAllocation(ssao);
+    }
+
+    @Test
+    public void processDownsampledDoesNotAllocate() {
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setDownsample(2);
+        assertNoAllocation(ssao);
+    }
+
+    @Test
+    public void processHemisphereDoesNotAllocate() {
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setKernel(SSAO.Kernel.HEMISPHERE);
+        ssao.setNormalBuffer(normalBuffer);
+        assertNoAllocation(ssao);
+    }
+
+    @Test
+    public void processIncrementalDoesNotAllocate() {
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setIncremental(true);
+        for (int i = 0; i < WARMUP; i++) {
+            depthBuffer.markDirty(40, 30, 60, 50);
+            ssao.process();
+        }
+        long allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            depthBuffer.markDirty(40, 30, 60, 50);
+            ssao.process();
+        }
+        assertEquals(0, allocatedBytes() - allocated);
+    }
+
+    @Test
+    public void processTemporalDoesNotAllocate() {
+        VertexTransform transform = new VertexTransform(new Mesh());
+        transform.transform(WIDTH / 2, HEIGHT / 2);
+        SSAO ssao = new SSAO(depthBuffer);
+        ssao.setTransform(transform);
+        ssao.setTemporalFrames(4);
+        assertNoAllocation(ssao);
+    }
+
+    private void assertNoAllocation(SSAO ssao) {
+        for (int i = 0; i < WARMUP; i++) {
+            ssao.process();
+        }
+        long allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            ssao.process();
+        }
+        assertEquals(0, allocatedBytes() - allocated);
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+}